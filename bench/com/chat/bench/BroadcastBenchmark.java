@@ -0,0 +1,56 @@
+package com.chat.bench;
+
+import com.chat.common.data.Message;
+import com.chat.common.utils.Type;
+import com.chat.server.ServerConfig;
+import com.chat.server.impl.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one room message to N in-process clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    // the number of clients in the room
+    @Param({"10", "100", "2000"})
+    public int clients;
+
+    private Server server;
+    private Message message;
+
+    
+    @Setup
+    public void setup() {
+        
+        server = new Server(0, new ServerConfig());
+        for (int i = 0; i < clients; ++i) server.add(new FakeConnection());
+        
+        message = new Message("the quick brown fox jumps over the lazy dog", Type.MSG);
+        message.setUsername("alice");
+    }
+
+    
+    @Benchmark
+    public void broadcast() {
+        
+        server.broadcast(message);
+    }
+}
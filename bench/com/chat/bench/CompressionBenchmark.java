@@ -0,0 +1,182 @@
+package com.chat.bench;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.Compression;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.utils.Type;
+import com.chat.server.ServerConfig;
+import com.chat.server.impl.Server;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+/**
+ * The CPU cost of per-message compression: deflating one frame, inflating it on the client,
+ * and a broadcast to 100 clients that take compressed frames against one to clients that do not.
+ * The sizes behind the timings are reported as secondary results, see {@link Sizes}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    
+    // the words the message text is made of, chat text compresses about this well
+    private static final String[] WORDS = {
+            "the", "server", "room", "message", "client", "hello", "is", "anyone", "here", "yes",
+            "we", "are", "deploying", "build", "failed", "again", "logs", "look", "at", "this"
+    };
+    
+    // the clients in the room
+    private static final int CLIENTS = 100;
+    
+    // the length of the message text
+    @Param({"256", "1024", "4096"})
+    public int size;
+    
+    private ByteBuffer frame;
+    private ByteBuffer payload;
+    private Inflater inflater;
+    private Message message;
+    private Server plainServer;
+    private Server compressingServer;
+    private FakeConnection[] plainClients;
+    private FakeConnection[] compressingClients;
+    private long compressedBytes;
+    private long plainBroadcastBytes;
+    private long compressedBroadcastBytes;
+
+    
+    /**
+     * The frame before and after compression, and the bytes handed to all the clients by one
+     * broadcast with and without it. They do not change during a trial, so every iteration
+     * reports the values measured at setup. JMH zeroes the counters after the setup of an
+     * iteration, they are filled in when it ends.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+        
+        public long frameBytes;
+        public long compressedBytes;
+        public long plainBroadcastBytes;
+        public long compressedBroadcastBytes;
+
+        
+        @TearDown(Level.Iteration)
+        public void report(CompressionBenchmark benchmark) {
+            
+            frameBytes = benchmark.frame.remaining();
+            compressedBytes = benchmark.compressedBytes;
+            plainBroadcastBytes = benchmark.plainBroadcastBytes;
+            compressedBroadcastBytes = benchmark.compressedBroadcastBytes;
+        }
+    }
+
+    
+    @Setup
+    public void setup() {
+        
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        text.setLength(size);
+        
+        message = new Message(text.toString(), Type.MSG);
+        message.setUsername("alice");
+        message.setRoom(Message.DEFAULT_ROOM);
+        
+        frame = MessageEncoder.encode(message);
+        ByteBuffer compressed = Compression.compress(frame);
+        compressedBytes = compressed.remaining();
+        while (compressed.get() < 0) ;
+        payload = compressed.slice();
+        inflater = new Inflater();
+        
+        ServerConfig config = new ServerConfig();
+        config.setCompressThreshold(1);
+        plainServer = new Server(0, config);
+        compressingServer = new Server(0, config);
+        plainClients = join(plainServer, false);
+        compressingClients = join(compressingServer, true);
+        plainBroadcastBytes = bytesPerBroadcast(plainServer, plainClients);
+        compressedBroadcastBytes = bytesPerBroadcast(compressingServer, compressingClients);
+    }
+
+    
+    private static FakeConnection[] join(Server server, boolean compression) {
+        
+        FakeConnection[] clients = new FakeConnection[CLIENTS];
+        for (int i = 0; i < CLIENTS; ++i) {
+            clients[i] = new FakeConnection(compression);
+            server.add(clients[i]);
+        }
+        return clients;
+    }
+
+    
+    private long bytesPerBroadcast(Server server, FakeConnection[] clients) {
+        
+        // only the broadcast is counted, not the notices of the clients joining
+        for (FakeConnection client : clients) client.bytes = 0;
+        server.broadcast(message);
+        
+        long bytes = 0;
+        for (FakeConnection client : clients) bytes += client.bytes;
+        return bytes;
+    }
+
+    
+    @TearDown
+    public void tearDown() {
+        
+        inflater.end();
+    }
+
+    
+    @Benchmark
+    public ByteBuffer compress(Sizes sizes) {
+        
+        return Compression.compress(frame);
+    }
+
+    
+    @Benchmark
+    public ByteBuffer inflate() throws IOException {
+        
+        return Compression.inflate(payload.duplicate(), inflater);
+    }
+
+    
+    @Benchmark
+    public void broadcastPlain(Sizes sizes) {
+        
+        plainServer.broadcast(message);
+    }
+
+    
+    @Benchmark
+    public void broadcastCompressed(Sizes sizes) {
+        
+        compressingServer.broadcast(message);
+    }
+}
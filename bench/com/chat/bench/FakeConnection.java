@@ -0,0 +1,83 @@
+package com.chat.bench;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.MessageEncoder;
+import com.chat.server.ClientConnection;
+import com.chat.server.impl.Server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An in-process client that accepts every frame without a socket,
+ * so the benchmarks measure the server and not the network.
+ */
+class FakeConnection implements ClientConnection {
+    
+    private final int clientId = Server.connectionId.incrementAndGet();
+    private final String username = "user" + clientId;
+    
+    // whether this client takes compressed frames
+    private final boolean compression;
+    
+    // the bytes handed to this client
+    long bytes;
+
+    
+    FakeConnection() {
+        
+        this(false);
+    }
+
+    
+    FakeConnection(boolean compression) {
+        
+        this.compression = compression;
+    }
+
+    
+    @Override
+    public int getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getDate() {
+        return "";
+    }
+
+    @Override
+    public boolean writeMsg(Message msg) {
+        return writeFrame(MessageEncoder.encode(msg));
+    }
+
+    @Override
+    public boolean writeFrame(ByteBuffer frame) {
+        
+        bytes += frame.duplicate().remaining();
+        return true;
+    }
+
+    @Override
+    public boolean acceptsCompression() {
+        return compression;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getLastActivity() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() {
+    }
+}
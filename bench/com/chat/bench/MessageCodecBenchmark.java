@@ -0,0 +1,71 @@
+package com.chat.bench;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.MessageDecoder;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.utils.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of one message on the wire.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    // the length of the message text
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private Message message;
+    private ByteBuffer payload;
+
+    
+    @Setup
+    public void setup() throws IOException {
+        
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; i < size; ++i) text.append((char) ('a' + i % 26));
+        
+        message = new Message(text.toString(), Type.MSG);
+        message.setUsername("alice");
+        message.setRoom("lobby");
+
+        ByteBuffer frame = MessageEncoder.encode(message);
+        Frames.getVarint(frame);
+        payload = frame.slice();
+    }
+
+    
+    @Benchmark
+    public ByteBuffer encode() {
+        
+        return MessageEncoder.encode(message);
+    }
+
+    
+    @Benchmark
+    public Message decode() throws IOException {
+        
+        return MessageDecoder.decode(payload.duplicate());
+    }
+}
@@ -0,0 +1,63 @@
+package com.chat.bench;
+
+import com.chat.common.data.Message;
+import com.chat.common.utils.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timestamping and display formatting of a message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFormatBenchmark {
+
+    private Message message;
+
+    
+    @Setup
+    public void setup() {
+        
+        message = new Message("the quick brown fox jumps over the lazy dog", Type.MSG);
+        message.setUsername("alice");
+        message.setRoom("lobby");
+    }
+
+    
+    @Benchmark
+    public String toText() {
+        
+        return message.toString();
+    }
+
+    
+    @Benchmark
+    public Message setTime() {
+        
+        message.setTime(new Date());
+        return message;
+    }
+
+    
+    @Benchmark
+    public Message setTimestamp() {
+        
+        message.setTimestamp(System.currentTimeMillis());
+        return message;
+    }
+}
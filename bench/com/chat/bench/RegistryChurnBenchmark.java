@@ -0,0 +1,54 @@
+package com.chat.bench;
+
+import com.chat.server.ServerConfig;
+import com.chat.server.impl.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clients joining and leaving a server that already holds N clients, from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RegistryChurnBenchmark {
+
+    // the number of clients staying connected
+    @Param({"100", "2000"})
+    public int clients;
+
+    private Server server;
+
+    
+    @Setup
+    public void setup() {
+        
+        server = new Server(0, new ServerConfig());
+        for (int i = 0; i < clients; ++i) server.add(new FakeConnection());
+    }
+
+    
+    @Benchmark
+    public void addAndRemove() {
+        
+        FakeConnection client = new FakeConnection();
+        server.add(client);
+        server.remove(client.getClientId());
+    }
+}
@@ -0,0 +1,93 @@
+package com.chat.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spaces the attempts to reach the server after the connection is lost.
+ * The delay doubles with each failed attempt up to a ceiling, and only its first half
+ * is fixed: the rest is random, so clients dropped together do not all come back at once.
+ * The limits can be overridden with system properties, e.g. -Dchat.client.reconnectAttempts=0
+ */
+public class Backoff {
+    
+    public static final String BASE_PROPERTY = "chat.client.reconnectBaseMillis";
+    public static final String MAX_PROPERTY = "chat.client.reconnectMaxMillis";
+    public static final String ATTEMPTS_PROPERTY = "chat.client.reconnectAttempts";
+    
+    // the delay before the first attempt
+    private final long baseMillis;
+    
+    // the longest delay between two attempts
+    private final long maxMillis;
+    
+    // the attempts before giving up, 0 to never reconnect
+    private final int maxAttempts;
+    
+    // the attempts made since the last reset
+    private int attempts;
+
+    
+    /**
+     * Constructs a backoff.
+     *
+     * @param baseMillis  the delay before the first attempt
+     * @param maxMillis   the longest delay between two attempts
+     * @param maxAttempts the attempts before giving up, 0 to never reconnect
+     */
+    public Backoff(long baseMillis, long maxMillis, int maxAttempts) {
+        
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+        this.maxAttempts = Math.max(0, maxAttempts);
+    }
+
+    
+    /**
+     * Builds a backoff from the system properties, falling back to 250 ms doubling up
+     * to 10 s, for 10 attempts.
+     *
+     * @return the backoff
+     */
+    public static Backoff fromSystemProperties() {
+        
+        return new Backoff(Long.getLong(BASE_PROPERTY, 250), Long.getLong(MAX_PROPERTY, 10000),
+                Integer.getInteger(ATTEMPTS_PROPERTY, 10));
+    }
+
+    
+    /**
+     * Tells whether another attempt may be made.
+     *
+     * @return false once the attempts are used up
+     */
+    public boolean hasNext() {
+        
+        return attempts < maxAttempts;
+    }
+
+    
+    /**
+     * Counts an attempt and returns how long to wait before making it.
+     *
+     * @return the delay in milliseconds
+     */
+    public long nextDelay() {
+        
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(attempts, 30));
+        attempts++;
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    
+    /**
+     * Starts over from the first delay, once connected again.
+     */
+    public void reset() {
+        
+        attempts = 0;
+    }
+    
+    public int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,134 @@
+package com.chat.client;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the frames of the client from a background thread, coalescing the frames
+ * queued within the window of the {@link FlushPolicy} into a single write and flush.
+ * A burst of messages then costs one system call instead of one per message.
+ */
+public class BatchingSender extends Thread {
+    
+    // the number of frames that may wait before senders block
+    private static final int QUEUE_SIZE = 4096;
+    
+    // queued to cut the current batch short
+    private static final ByteBuffer FLUSH = ByteBuffer.allocate(0);
+    
+    // queued to stop the sender once everything before it is written
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+    
+    // the frames waiting to be written
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    
+    // the socket stream, buffered to the size of a batch
+    private final OutputStream out;
+    
+    // when to write a batch
+    private final FlushPolicy policy;
+    
+    // the error that stopped the sender, reported to the next caller
+    private volatile IOException failure;
+
+    
+    /**
+     * Constructs a sender.
+     *
+     * @param out    the stream to write to
+     * @param policy when to write a batch
+     */
+    public BatchingSender(OutputStream out, FlushPolicy policy) {
+        
+        super("client-sender");
+        this.out = new BufferedOutputStream(out, policy.getMaxBatchBytes());
+        this.policy = policy;
+        setDaemon(true);
+    }
+
+    
+    /**
+     * Queues a frame for the next batch.
+     *
+     * @param frame the frame to send
+     * @throws IOException if the sender has failed or was closed
+     */
+    public void send(ByteBuffer frame) throws IOException {
+        
+        if (failure != null) throw failure;
+        
+        try {
+            queue.put(frame);
+        } 
+        
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending");
+        }
+    }
+
+    
+    /**
+     * Writes the pending batch now instead of waiting for its window to end.
+     */
+    public void flush() {
+        
+        queue.offer(FLUSH);
+    }
+
+    
+    /**
+     * Writes what is pending and stops the sender.
+     */
+    public void close() {
+        
+        if (failure == null) failure = new IOException("Sender closed");
+        if (!queue.offer(CLOSE)) interrupt();
+    }
+
+    
+    /**
+     * The main execution logic of the sender: one write and flush per batch.
+     */
+    public void run() {
+        
+        long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(policy.getMaxDelayMillis());
+        
+        try {
+            while (true) {
+                ByteBuffer frame = queue.take();
+                if (frame == CLOSE) return;
+                
+                long deadline = System.nanoTime() + maxDelayNanos;
+                int bytes = 0;
+                
+                while (frame != null && frame != FLUSH) {
+                    if (frame == CLOSE) {
+                        out.flush();
+                        return;
+                    }
+                    bytes += frame.remaining();
+                    out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    if (bytes >= policy.getMaxBatchBytes()) break;
+                    
+                    long wait = deadline - System.nanoTime();
+                    frame = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                }
+                out.flush();
+            }
+        } 
+        
+        catch (InterruptedException e) {
+            failure = new IOException("Sender interrupted");
+        } 
+        
+        catch (IOException e) {
+            failure = e;
+        }
+    }
+}
@@ -21,4 +21,11 @@ public interface ClientSvc {
      * @return a String indicating the status of the client
      */
     String start();
+
+    /**
+     * Tells whether the client is connected to the server.
+     *
+     * @return true once start() has connected, until the connection is lost
+     */
+    boolean isConnected();
 }
\ No newline at end of file
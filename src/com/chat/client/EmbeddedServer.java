@@ -0,0 +1,95 @@
+package com.chat.client;
+
+import com.chat.common.log.AsyncLog;
+import com.chat.server.ServerFactory;
+import com.chat.server.ServerSvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Elects the one process of this machine that hosts the chat server when no server can
+ * be reached. The clients race for an exclusive lock on a file named after the port:
+ * the winner starts the server and holds the lock while it runs, the others connect
+ * to it. The operating system releases the lock with its process, so when the host
+ * dies another client takes over on its next attempt.
+ */
+public class EmbeddedServer {
+    
+    // the lock held while this process hosts the server, null otherwise
+    private static FileLock lock;
+
+    
+    /**
+     * Starts the chat server in this process, unless another process or client already hosts it.
+     *
+     * @param port the port of the server
+     * @return true if this call started the server
+     */
+    public static synchronized boolean tryHost(final int port) {
+        
+        if (lock != null) return false;
+        
+        File file = new File(System.getProperty("java.io.tmpdir"), "chat-server-" + port + ".lock");
+        FileChannel channel = null;
+        
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            lock = channel.tryLock();
+        } 
+        
+        catch (IOException e) {
+            AsyncLog.warn("EmbeddedServer", "Cannot lock " + file, e);
+        } 
+        
+        catch (OverlappingFileLockException e) {
+            AsyncLog.warn("EmbeddedServer", "Cannot lock " + file, e);
+        }
+        
+        if (lock == null) {
+            close(channel);
+            return false;
+        }
+        
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                try {
+                    ServerSvc serviceSvc = ServerFactory.create(port);
+                    serviceSvc.start();
+                } 
+                
+                finally {
+                    release();
+                }
+            }
+        }, "embedded-server").start();
+        return true;
+    }
+
+    
+    /**
+     * Releases the lock once the server has stopped, so another process may host the next one.
+     */
+    private static synchronized void release() {
+        
+        if (lock == null) return;
+        close(lock.channel());
+        lock = null;
+    }
+    
+    private static void close(FileChannel channel) {
+        
+        try {
+            if (channel != null) channel.close();
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+    }
+}
@@ -0,0 +1,52 @@
+package com.chat.client;
+
+/**
+ * Decides how long the client may hold outgoing messages to send them together.
+ * A batch is written as soon as it is older than the maximum delay or bigger than
+ * the maximum size, so batching never adds more than the delay to a message's latency.
+ * Both limits can be overridden with system properties, e.g. -Dchat.client.flushDelayMillis=0
+ */
+public class FlushPolicy {
+
+    public static final String DELAY_PROPERTY = "chat.client.flushDelayMillis";
+    public static final String BATCH_BYTES_PROPERTY = "chat.client.maxBatchBytes";
+
+    // the longest a message may wait for others to join its batch
+    private final long maxDelayMillis;
+
+    // the size in bytes past which a batch is written at once
+    private final int maxBatchBytes;
+
+    
+    /**
+     * Constructs a flush policy.
+     *
+     * @param maxDelayMillis the longest a message may wait, 0 to write every message at once
+     * @param maxBatchBytes  the size in bytes past which a batch is written at once
+     */
+    public FlushPolicy(long maxDelayMillis, int maxBatchBytes) {
+        
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    
+    /**
+     * Builds a policy from the system properties, falling back to a 5 ms and 16 KB window.
+     *
+     * @return the policy
+     */
+    public static FlushPolicy fromSystemProperties() {
+        
+        return new FlushPolicy(Long.getLong(DELAY_PROPERTY, 5), Integer.getInteger(BATCH_BYTES_PROPERTY, 16 * 1024));
+    }
+
+    
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+}
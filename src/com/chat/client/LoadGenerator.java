@@ -0,0 +1,149 @@
+package com.chat.client;
+
+import com.chat.client.impl.HeadlessClient;
+import com.chat.common.data.Message;
+import com.chat.common.utils.LatencyHistogram;
+import com.chat.common.utils.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a chat server with many simulated users and reports throughput and end-to-end latency.
+ * Each message carries its send time, every delivery back to one of the simulated users
+ * is timed against it, so the latency covers the client, the network and the server fan-out.
+ *
+ * Usage: LoadGenerator [host] [port] [clients] [messages per second] [seconds] [payload bytes]
+ */
+public class LoadGenerator {
+
+    // marks the messages sent by the generator
+    private static final String MARKER = "LG ";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+
+    
+    public static void main(String[] args) throws InterruptedException {
+        
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int rate = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int payload = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+        
+        new LoadGenerator().run(host, port, clients, rate, seconds, payload);
+    }
+
+    
+    /**
+     * Connects the simulated users, sends at the target rate and prints the report.
+     *
+     * @param host    the chat server host
+     * @param port    the chat server port
+     * @param clients the number of simulated users
+     * @param rate    the messages sent per second, across all users
+     * @param seconds how long to send
+     * @param payload the size of the text padding each message
+     * @throws InterruptedException if interrupted while sending
+     */
+    public void run(String host, int port, int clients, int rate, int seconds, int payload)
+            throws InterruptedException {
+        
+        MessageListener listener = new MessageListener() {
+            @Override
+            public void onMessage(Message msg) {
+                received(msg);
+            }
+
+            @Override
+            public void connectionFailed() {
+                disconnects.incrementAndGet();
+            }
+        };
+
+        List<HeadlessClient> users = new ArrayList<HeadlessClient>(clients);
+        for (int i = 0; i < clients; ++i) {
+            HeadlessClient user = new HeadlessClient(host, port, "load" + i, listener, FlushPolicy.fromSystemProperties());
+            user.start();
+            if (user.isConnected()) users.add(user);
+        }
+        System.out.println(users.size() + " of " + clients + " users connected to " + host + ":" + port);
+        if (users.isEmpty()) return;
+        
+        StringBuilder padding = new StringBuilder(payload);
+        for (int i = 0; i < payload; ++i) padding.append('x');
+        String text = padding.toString();
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long next = start;
+        long sent = 0;
+        
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            
+            HeadlessClient user = users.get((int) (sent % users.size()));
+            user.sendMessage(new Message(MARKER + System.nanoTime() + " " + text, Type.MSG));
+            sent++;
+            next += interval;
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        // let the last deliveries arrive
+        Thread.sleep(1000);
+        long receiveNanos = System.nanoTime() - start;
+        for (HeadlessClient user : users) user.close();
+
+        report(users.size(), sent, sendNanos, receiveNanos);
+    }
+
+    
+    /**
+     * Times a delivery against the send time it carries.
+     *
+     * @param msg the message received by a simulated user
+     */
+    private void received(Message msg) {
+        
+        if (msg.getType() == Type.ERROR) {
+            errors.incrementAndGet();
+            return;
+        }
+        
+        String text = msg.getMsg();
+        if (msg.getType() != Type.MSG || text == null || !text.startsWith(MARKER)) return;
+        
+        int endOfTime = text.indexOf(' ', MARKER.length());
+        if (endOfTime < 0) return;
+        
+        long sentAt = Long.parseLong(text.substring(MARKER.length(), endOfTime));
+        latency.record(System.nanoTime() - sentAt);
+        delivered.incrementAndGet();
+    }
+
+    
+    private void report(int users, long sent, long sendNanos, long receiveNanos) {
+        
+        double sendSeconds = sendNanos / 1e9;
+        double receiveSeconds = receiveNanos / 1e9;
+        
+        System.out.println("users        " + users);
+        System.out.println("sent         " + sent + String.format(" (%.0f msg/s)", sent / sendSeconds));
+        System.out.println("delivered    " + delivered.get() + String.format(" (%.0f msg/s)", delivered.get() / receiveSeconds));
+        System.out.println("expected     " + sent * users);
+        System.out.println("errors       " + errors.get());
+        System.out.println("disconnects  " + disconnects.get());
+        System.out.println(String.format("latency us   p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f  mean %.1f",
+                latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+                latency.getValueAtPercentile(99.9) / 1e3, latency.getMax() / 1e3, latency.getMean() / 1e3));
+    }
+}
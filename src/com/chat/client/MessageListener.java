@@ -0,0 +1,21 @@
+package com.chat.client;
+
+import com.chat.common.data.Message;
+
+/**
+ * Receives what a client gets from the server, whether a UI or a headless consumer.
+ */
+public interface MessageListener {
+
+    /**
+     * Called for every message received, and for the status messages of the client itself.
+     *
+     * @param msg the message
+     */
+    void onMessage(Message msg);
+
+    /**
+     * Called once the connection to the server is lost.
+     */
+    void connectionFailed();
+}
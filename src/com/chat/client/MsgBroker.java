@@ -1,52 +1,62 @@
 package com.chat.client;
 
-import com.chat.client.impl.Client;
 import com.chat.common.data.Message;
+import com.chat.common.io.Compression;
+import com.chat.common.io.Frames;
+import com.chat.common.io.MessageDecoder;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
 
 /**
- * The MsgBroker class is responsible for receiving messages from the server and updating the ChatClient.
+ * The MsgBroker class is responsible for receiving messages from the server and passing them to a listener.
  * It runs as a separate thread to continuously listen for incoming messages.
+ * Frames the server compressed are inflated here, before they are decoded.
  */
 public class MsgBroker extends Thread {
     
-    private Client client;
+    private DataInputStream in;
+    private MessageListener listener;
+    // reused for every compressed frame, only this thread reads them
+    private final Inflater inflater = new Inflater();
 
     /**
-     * Constructs a new MsgBroker with the given Client instance.
+     * Constructs a new MsgBroker reading from the given stream.
      *
-     * @param client the client instance associated with this MsgBroker
+     * @param in       the stream of the connection to the server
+     * @param listener the listener receiving the messages
      */
-    public MsgBroker(Client client) {
+    public MsgBroker(DataInputStream in, MessageListener listener) {
         
-        this.client = client;
+        this.in = in;
+        this.listener = listener;
+        setDaemon(true);
     }
 
     
     /**
      * The run method is executed when the thread starts.
-     * It continuously listens for incoming messages from the server and updates the ChatClient accordingly.
+     * It continuously listens for incoming messages from the server and passes them to the listener.
      */
     public void run() {
         
         while(true) {
             
             try {
-                Message msg = (Message) client.getObjectInputStream().readObject();
-                client.getChatClient().appendText(msg);
+                ByteBuffer payload = Frames.readFrame(in);
+                if (Compression.isCompressed(payload)) payload = Compression.inflate(payload, inflater);
+                Message msg = MessageDecoder.decode(payload);
+                listener.onMessage(msg);
             } 
             
             catch(IOException e) {
-                client.display(new Message(e, "Server has closed the connection"));
-                if(client.getChatClient() != null)
-                    client.getChatClient().connectionFailed();
+                listener.onMessage(new Message(e, "Server has closed the connection"));
+                listener.connectionFailed();
                 break;
-            } 
-            
-            catch(ClassNotFoundException e2) {
-                e2.printStackTrace();
             }
         }
+        inflater.end();
     }
 }
@@ -1,125 +1,495 @@
 package com.chat.client.impl;
 
+import com.chat.client.Backoff;
+import com.chat.client.BatchingSender;
 import com.chat.client.ClientSvc;
+import com.chat.client.EmbeddedServer;
+import com.chat.client.FlushPolicy;
+import com.chat.client.MessageListener;
 import com.chat.client.MsgBroker;
 import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.Handshake;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.log.AsyncLog;
 import com.chat.common.utils.Type;
-import com.chat.server.ServerSvc;
-import com.chat.server.impl.Server;
-import com.chat.ui.ChatClient;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 /*
- * The Client that can be run both as a console or a GUI
+ * The Client that can be run both as a console or a GUI.
+ * A lost connection is retried with a jittered exponential backoff: the client resumes
+ * its session on the server, sends again the messages the server had not acknowledged
+ * and asks for the room history after the last message it received.
+ * Large broadcasts are received compressed, unless -Dchat.client.compression=false
  */
 public class Client implements ClientSvc {
 
-    private ObjectInputStream objectInputStream;
-    private ObjectOutputStream objectOutputStream;
+    public static final String COMPRESSION_PROPERTY = "chat.client.compression";
+    private DataInputStream in;
+    private DataOutputStream out;
+    private volatile BatchingSender sender;
     private Socket socket;
-    private ChatClient chatClient;
+    private MessageListener listener;
     private String server, username;
     private int port;
+    // the room plain messages are sent to
+    private volatile String room = Message.DEFAULT_ROOM;
+    // the highest offset received, history is resumed after it
+    private volatile long lastOffset;
+    // how many recent offsets are remembered to drop replayed duplicates
+    private static final int SEEN_OFFSETS = 4096;
+    // how many sent messages are kept until the server acknowledges them
+    private static final int UNACKED_MESSAGES = 1024;
+    // how long to wait for the server to accept the connection
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // the capabilities offered to the server
+    private static final int CAPABILITIES =
+            Boolean.parseBoolean(System.getProperty(COMPRESSION_PROPERTY, "true")) ? Handshake.DEFLATE : 0;
+    // the offsets recently received, to drop the messages received both live and from history,
+    // guarded by itself as the broker thread fills it while a reconnect clears it
+    private final Map<Long, Boolean> seen = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > SEEN_OFFSETS;
+        }
+    };
+    // the sequenced frames not acknowledged yet, by sequence, guarded by this client
+    private final LinkedHashMap<Long, ByteBuffer> unacked = new LinkedHashMap<Long, ByteBuffer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+            return size() > UNACKED_MESSAGES;
+        }
+    };
+    // the sequence of the last message sent, guarded by this client
+    private long lastSeq;
+    // the session token given by the server, 0 before the first login
+    private volatile long session;
+    // the delays between connection attempts
+    private final Backoff backoff = Backoff.fromSystemProperties();
+    // turned on once the user signed out, the connection is not retried after that
+    private volatile boolean signedOut;
+    // turned on once the client fell back on the chat server of this machine
+    private volatile boolean local;
+    // turned on while a connection is logged in
+    private volatile boolean connected;
 
     
-    public Client(String server, int port, String username, ChatClient chatClient) {
+    public Client(String server, int port, String username, MessageListener listener) {
         this.server = server;
         this.port = port;
         this.username = username;
-        this.chatClient = chatClient;
+        this.listener = listener;
     }
 
     
     @Override
     public String start() {
         
-        while (socket == null) {
+        while (true) {
             
             try {
                 display(new Message("Connecting to the chat server", Type.INFO));
-                socket = new Socket(server, port);
+                socket = open();
+                break;
             } 
             
-            catch (Exception e) {
-                display(new Message("Chat server not available at " + server + ":" + port, Type.ERROR));
-                display(new Message("Starting the chat server on this machine", Type.INFO));
-                
-                try {
-                    server = Inet4Address.getLocalHost().getHostAddress();
-                } 
-                
-                catch (UnknownHostException e1) {
-                    e1.printStackTrace();
+            catch (IOException e) {
+                if (!local) {
+                    display(new Message("Chat server not available at " + server + ":" + port, Type.ERROR));
+                    useLocalServer();
                 }
+                hostLocalServer();
                 
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        ServerSvc serviceSvc = new Server(port);
-                        serviceSvc.start();
-                    }
-                }).start();
+                if (!pause()) {
+                    display(new Message("Chat server not available at " + server + ":" + port, Type.ERROR));
+                    listener.connectionFailed();
+                    return server;
+                }
             }
         }
 
+        if (!login()) disconnect();
+        return server;
+    }
+
+    
+    /**
+     * Connects to the chat server of this machine from now on, whichever process hosts it.
+     */
+    private void useLocalServer() {
+        
+        local = true;
+        
+        try {
+            server = Inet4Address.getLocalHost().getHostAddress();
+        } 
+        
+        catch (UnknownHostException e1) {
+            AsyncLog.warn("Client", "Cannot resolve the address of this machine", e1);
+        }
+    }
+
+    
+    /**
+     * Starts the chat server of this machine in this process, if no other process hosts it.
+     * The host may also have died since the last attempt, whoever gets its lock takes over.
+     */
+    private void hostLocalServer() {
+        
+        if (EmbeddedServer.tryHost(port))
+            display(new Message("Starting the chat server on this machine", Type.INFO));
+    }
+
+    
+    /**
+     * Opens a connection to the server, waiting a bounded time for it to accept.
+     *
+     * @return the connected socket
+     * @throws IOException if the server cannot be reached
+     */
+    private Socket open() throws IOException {
+        
+        Socket created = new Socket();
+        
+        try {
+            created.setTcpNoDelay(true);
+            created.connect(new InetSocketAddress(server, port), CONNECT_TIMEOUT_MILLIS);
+            return created;
+        } 
+        
+        catch (IOException e) {
+            created.close();
+            throw e;
+        }
+    }
+
+    
+    /**
+     * Waits before the next connection attempt.
+     *
+     * @return false once the attempts are used up or the user signed out
+     */
+    private boolean pause() {
+        
+        if (!backoff.hasNext() || signedOut) return false;
+        
+        try {
+            Thread.sleep(backoff.nextDelay());
+            return !signedOut;
+        } 
+        
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    
+    /**
+     * Logs in on the connected socket, resuming the session of an earlier connection if
+     * there is one, sends again the messages the server had not handled and asks for
+     * the history missed in the meantime.
+     *
+     * @return false if the login failed
+     */
+    private boolean login() {
+        
         String msg = "Connection accepted " + socket.getInetAddress() + ":" + socket.getPort();
         display(new Message(msg, Type.INFO));
 
         try {
-            objectInputStream = new ObjectInputStream(socket.getInputStream());
-            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
         } 
         
         catch (IOException eIO) {
             display(new Message(eIO, "Exception creating new Input/output Streams"));
-            return server;
+            return false;
         }
 
-        new MsgBroker(this).start();
+        BatchingSender created;
+        boolean resumed;
+        long acked;
         
         try {
-            objectOutputStream.writeObject(username);
+            Frames.writeFrame(out, new Handshake(username, session, 0, CAPABILITIES).encode());
+            Handshake reply = Handshake.read(in);
+            username = reply.getUsername();
+            resumed = session != 0 && reply.getSession() == session;
+            session = reply.getSession();
+            acked = reply.getAcked();
+            created = new BatchingSender(socket.getOutputStream(), FlushPolicy.fromSystemProperties());
         } 
         
         catch (IOException ioe) {
             display(new Message(ioe, "Exception doing login"));
-            disconnect();
-            return server;
+            return false;
+        }
+
+        created.start();
+        backoff.reset();
+        
+        // a server that forgot the session may be another one, whose offsets mean nothing here
+        if (!resumed) {
+            synchronized (seen) {
+                seen.clear();
+                lastOffset = 0;
+            }
+        }
+        
+        synchronized (this) {
+            sender = created;
+            
+            // a new session starts in the lobby, the server forgot everything else
+            if (!resumed && !room.equals(Message.DEFAULT_ROOM)) {
+                Message join = new Message("", Type.JOIN);
+                join.setUsername(username);
+                join.setRoom(room);
+                send(MessageEncoder.encode(join));
+            }
+            
+            if (resumed) acknowledge(acked);
+            if (!unacked.isEmpty()) display(new Message("Sending " + unacked.size() + " messages again", Type.INFO));
+            for (ByteBuffer frame : unacked.values()) send(frame.duplicate());
+        }
+        
+        new MsgBroker(in, historyFilter(created)).start();
+        requestHistory(room, lastOffset > 0 ? lastOffset + 1 : 0);
+        connected = true;
+        return true;
+    }
+
+    
+    /**
+     * Retries the connection after it was lost, on a thread of its own, until the
+     * attempts are used up; the listener is only told about the failure then.
+     */
+    private void reconnect() {
+        
+        closeConnection();
+        
+        Thread reconnect = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                backoff.reset();
+                
+                while (pause()) {
+                    display(new Message("Reconnecting to the chat server, attempt " + backoff.getAttempts(), Type.INFO));
+                    
+                    try {
+                        socket = open();
+                    } 
+                    
+                    catch (IOException e) {
+                        if (local) hostLocalServer();
+                        continue;
+                    }
+                    
+                    if (login()) return;
+                    closeConnection();
+                }
+                
+                if (!signedOut) display(new Message("Could not reconnect to the chat server", Type.ERROR));
+                listener.connectionFailed();
+            }
+        }, "client-reconnect");
+        reconnect.setDaemon(true);
+        reconnect.start();
+    }
+
+    
+    /**
+     * Asks for the messages of a room, after an offset, or the latest ones when the offset is 0.
+     *
+     * @param room       the room name
+     * @param fromOffset the first offset wanted, 0 for the latest messages
+     */
+    private void requestHistory(String room, long fromOffset) {
+        
+        Message request = new Message("", Type.HISTORY);
+        request.setRoom(room);
+        request.setOffset(fromOffset);
+        request.setTimestamp(0);
+        sendMessage(request);
+    }
+
+    
+    /**
+     * Wraps the listener to answer the server's PINGs, to forget the acknowledged messages,
+     * to remember the last offset and to drop the messages received both live and from a
+     * history replay. A lost connection is retried unless the user signed out.
+     *
+     * @param connection the sender of the connection the messages are read from
+     */
+    private MessageListener historyFilter(final BatchingSender connection) {
+        
+        return new MessageListener() {
+            @Override
+            public void onMessage(Message msg) {
+                
+                if (msg.getType() == Type.PING) {
+                    sendMessage(new Message("", Type.PONG));
+                    return;
+                }
+                if (msg.getType() == Type.PONG) return;
+                if (msg.getType() == Type.ACK) {
+                    synchronized (Client.this) {
+                        acknowledge(msg.getOffset());
+                    }
+                    return;
+                }
+                
+                long offset = msg.getOffset();
+                if (msg.getType() == Type.MSG && offset > 0) {
+                    synchronized (seen) {
+                        if (seen.put(offset, Boolean.TRUE) != null) return;
+                        if (offset > lastOffset) lastOffset = offset;
+                    }
+                }
+                listener.onMessage(msg);
+            }
+
+            @Override
+            public void connectionFailed() {
+                
+                // a connection already replaced has nothing to report
+                if (connection != sender) return;
+                if (signedOut || !backoff.hasNext()) disconnect();
+                else reconnect();
+            }
+        };
+    }
+
+    
+    /**
+     * Forgets the messages the server has handled. Called holding this client's lock.
+     *
+     * @param acked the last sequence handled
+     */
+    private void acknowledge(long acked) {
+        
+        for (Iterator<Long> it = unacked.keySet().iterator(); it.hasNext(); ) {
+            if (it.next() > acked) break;
+            it.remove();
         }
-        return server;
     }
 
     public void display(Message msg) {
-        chatClient.appendText(msg);
+        listener.onMessage(msg);
     }
 
     
     @Override
-    public void sendMessage(Message msg) {
+    public boolean isConnected() {
+        
+        return connected;
+    }
+
+    
+    /**
+     * Sends a message. Chat messages and room changes are numbered and kept until the
+     * server acknowledges them, to be sent again if the connection is lost first.
+     *
+     * @param msg the message to send
+     */
+    @Override
+    public synchronized void sendMessage(Message msg) {
+        
+        msg.setUsername(username);
+        if (!msg.hasRoom() && msg.getType() != Type.DIRECT) msg.setRoom(room);
+        if (msg.getType() == Type.JOIN) room = msg.getRoom();
+        if (msg.getType() == Type.LEAVE && msg.getRoom().equals(room)) room = Message.DEFAULT_ROOM;
+        if (msg.getType() == Type.SIGNOUT) signedOut = true;
+        
+        boolean sequenced = isSequenced(msg.getType());
+        if (sequenced) msg.setId(++lastSeq);
+        ByteBuffer frame = MessageEncoder.encode(msg);
+        if (sequenced) unacked.put(lastSeq, frame);
+        
+        if (!send(frame) && !sequenced)
+            display(new Message("Not connected, the message was not sent", Type.ERROR));
+        if (msg.getType() == Type.SIGNOUT && sender != null) sender.flush();
+        if (msg.getType() == Type.JOIN) requestHistory(msg.getRoom(), 0);
+    }
+
+    
+    /**
+     * Tells whether a message changes what the other users see, and so must not be lost
+     * with a connection.
+     *
+     * @param type the type of the message
+     * @return true for chat messages and room changes
+     */
+    private static boolean isSequenced(Type type) {
+        
+        return type == Type.MSG || type == Type.DIRECT || type == Type.JOIN || type == Type.LEAVE;
+    }
+
+    
+    /**
+     * Queues a frame on the current connection.
+     *
+     * @param frame the frame
+     * @return false if there is no working connection
+     */
+    private boolean send(ByteBuffer frame) {
+        
+        BatchingSender current = sender;
+        if (current == null) return false;
         
         try {
-            msg.setUsername(username);
-            objectOutputStream.writeObject(msg);
+            current.send(frame);
+            return true;
         } 
         
         catch (IOException e) {
-            display(new Message(e, "Exception writing to server"));
+            return false;
         }
     }
 
     
+    /**
+     * Closes the connection for good and tells the listener.
+     */
     private void disconnect() {
         
+        closeConnection();
+
+        // inform the GUI
+        if (listener != null) {
+            listener.connectionFailed();
+        }
+    }
+
+    
+    /**
+     * Closes the current connection, keeping what is needed to resume it.
+     */
+    private void closeConnection() {
+        
+        connected = false;
+        if (sender != null) {
+            sender.close();
+        }
+        
         try {
-            if (objectInputStream != null) {
-                objectInputStream.close();
+            if (in != null) {
+                in.close();
             }
         } 
         
@@ -127,8 +497,8 @@ public class Client implements ClientSvc {
         } // not much else I can do
         
         try {
-            if (objectOutputStream != null) {
-                objectOutputStream.close();
+            if (out != null) {
+                out.close();
             }
         } 
         
@@ -143,19 +513,5 @@ public class Client implements ClientSvc {
         
         catch (Exception e) {
         } // not much else I can do
-
-        // inform the GUI
-        if (chatClient != null) {
-            chatClient.connectionFailed();
-        }
-    }
-
-    
-    public ChatClient getChatClient() {
-        return chatClient;
-    }
-
-    public ObjectInputStream getObjectInputStream() {
-        return objectInputStream;
     }
 }
@@ -0,0 +1,149 @@
+package com.chat.client.impl;
+
+import com.chat.client.BatchingSender;
+import com.chat.client.ClientSvc;
+import com.chat.client.FlushPolicy;
+import com.chat.client.MessageListener;
+import com.chat.client.MsgBroker;
+import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.Handshake;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.utils.Type;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+
+/*
+ * A client without any UI, for bots and load tests.
+ * Unlike Client it never starts a server of its own: it connects once and reports a failure to its listener.
+ */
+public class HeadlessClient implements ClientSvc {
+
+    // how long to wait for the server to accept the connection
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String server, username;
+    private final int port;
+    private final MessageListener listener;
+    private final FlushPolicy flushPolicy;
+    private Socket socket;
+    private BatchingSender sender;
+    private volatile boolean isConnected;
+
+    
+    public HeadlessClient(String server, int port, String username, MessageListener listener, FlushPolicy flushPolicy) {
+        this.server = server;
+        this.port = port;
+        this.username = username;
+        this.listener = listener;
+        this.flushPolicy = flushPolicy;
+    }
+
+    
+    @Override
+    public String start() {
+        
+        try {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(server, port), CONNECT_TIMEOUT_MILLIS);
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            Frames.writeFrame(out, new Handshake(username).encode());
+            Handshake.read(in);
+
+            sender = new BatchingSender(out, flushPolicy);
+            sender.start();
+            isConnected = true;
+            
+            new MsgBroker(in, new MessageListener() {
+                @Override
+                public void onMessage(Message msg) {
+                    if (msg.getType() == Type.PING) sendMessage(new Message("", Type.PONG));
+                    // after close() the only thing left to read is the end of the stream
+                    else if (isConnected) listener.onMessage(msg);
+                }
+
+                @Override
+                public void connectionFailed() {
+                    if (isConnected) {
+                        isConnected = false;
+                        listener.connectionFailed();
+                    }
+                }
+            }).start();
+        } 
+        
+        catch (IOException e) {
+            listener.onMessage(new Message(e, username + " could not connect to " + server + ":" + port));
+            close();
+        }
+        return server;
+    }
+
+    
+    @Override
+    public void sendMessage(Message msg) {
+        
+        try {
+            msg.setUsername(username);
+            sender.send(MessageEncoder.encode(msg));
+            if (msg.getType() == Type.SIGNOUT) sender.flush();
+        } 
+        
+        catch (IOException e) {
+            listener.onMessage(new Message(e, "Exception writing to server"));
+        }
+    }
+
+    
+    /**
+     * Tells whether the client is connected.
+     *
+     * @return true between a successful start and the loss of the connection
+     */
+    @Override
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    
+    /**
+     * Signs out and closes the connection.
+     */
+    public void close() {
+        
+        if (isConnected) {
+            sendMessage(new Message("", Type.SIGNOUT));
+        }
+        isConnected = false;
+        
+        if (sender != null) {
+            sender.close();
+            
+            try {
+                sender.join(1000);
+            } 
+            
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+    }
+}
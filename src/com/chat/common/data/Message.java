@@ -2,21 +2,30 @@ package com.chat.common.data;
 
 import com.chat.common.utils.Type;
 
-import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 /**
  * The Message class represents a message exchanged in the chat application.
- * It implements the Serializable interface to allow for object serialization.
+ * It travels on the wire through MessageEncoder and MessageDecoder.
  */
-public class Message implements Serializable {
+public class Message {
     
-    public static SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+    public static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    public static final String DEFAULT_ROOM = "lobby";
+    // the last second formatted, most messages of a busy second share it
+    private static volatile FormattedSecond lastSecond;
     private String msg;
     private Type type;
     private String username;
-    private String time;
+    private long timestamp;
+    private long offset;
+    private long id;
+    private String room;
+    private String recipient;
 
     
     /**
@@ -31,13 +40,21 @@ public class Message implements Serializable {
 
     
     /**
-     * Gets the timestamp of the message.
+     * Gets the timestamp of the message, formatted for display.
+     * The formatting only happens here, never when the message is stamped or sent.
      *
      * @return the timestamp of the message
      */
     public String getTime() {
         
-        return time;
+        long second = Math.floorDiv(timestamp, 1000L);
+        FormattedSecond cached = lastSecond;
+        if (cached != null && cached.second == second)
+            return cached.text;
+        
+        String text = TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+        lastSecond = new FormattedSecond(second, text);
+        return text;
     }
 
     
@@ -48,7 +65,29 @@ public class Message implements Serializable {
      */
     public void setTime(Date time) {
         
-        this.time = sdf.format(time);
+        this.timestamp = time.getTime();
+    }
+
+    
+    /**
+     * Gets the timestamp of the message in milliseconds since the epoch.
+     *
+     * @return the epoch millis timestamp
+     */
+    public long getTimestamp() {
+        
+        return timestamp;
+    }
+
+    
+    /**
+     * Sets the timestamp of the message in milliseconds since the epoch.
+     *
+     * @param timestamp the epoch millis timestamp
+     */
+    public void setTimestamp(long timestamp) {
+        
+        this.timestamp = timestamp;
     }
 
     
@@ -87,6 +126,120 @@ public class Message implements Serializable {
     }
 
     
+    /**
+     * Sets the type of the message.
+     *
+     * @param type the type of the message
+     */
+    public void setType(Type type) {
+        
+        this.type = type;
+    }
+
+    
+    /**
+     * Gets the position of the message in the server log.
+     *
+     * @return the offset, 0 for messages that are not logged
+     */
+    public long getOffset() {
+        
+        return offset;
+    }
+
+    
+    /**
+     * Sets the position of the message in the server log.
+     *
+     * @param offset the offset
+     */
+    public void setOffset(long offset) {
+        
+        this.offset = offset;
+    }
+
+    
+    /**
+     * Gets the cluster-wide ID of the message, given by the node it was first broadcast on.
+     *
+     * @return the ID, 0 for messages that have none
+     */
+    public long getId() {
+        
+        return id;
+    }
+
+    
+    /**
+     * Sets the cluster-wide ID of the message.
+     *
+     * @param id the ID
+     */
+    public void setId(long id) {
+        
+        this.id = id;
+    }
+
+    
+    /**
+     * Gets the room the message belongs to.
+     *
+     * @return the room name, the default room when none was set
+     */
+    public String getRoom() {
+        
+        if (room == null || room.isEmpty())
+            return DEFAULT_ROOM;
+        return room;
+    }
+
+    
+    /**
+     * Sets the room the message belongs to.
+     *
+     * @param room the room name
+     */
+    public void setRoom(String room) {
+        
+        this.room = room;
+    }
+
+    
+    /**
+     * Tells whether a room was set on the message.
+     *
+     * @return true if the message names a room
+     */
+    public boolean hasRoom() {
+        
+        return room != null && !room.isEmpty();
+    }
+
+    
+    /**
+     * Gets the user a direct message is addressed to.
+     *
+     * @return the recipient username, or an empty string for room messages
+     */
+    public String getRecipient() {
+        
+        if (recipient == null || recipient.isEmpty())
+            return "";
+        return recipient;
+    }
+
+    
+    /**
+     * Sets the user a direct message is addressed to.
+     *
+     * @param recipient the recipient username
+     */
+    public void setRecipient(String recipient) {
+        
+        this.recipient = recipient;
+    }
+
+    
     /**
      * Sets the username associated with the message.
      *
@@ -103,7 +256,7 @@ public class Message implements Serializable {
      */
     public Message() {
         
-        this.time = sdf.format(new Date());
+        this.timestamp = System.currentTimeMillis();
     }
 
     
@@ -173,7 +326,26 @@ public class Message implements Serializable {
     @Override
     public String toString(){
         
-        return "<" + this.getTime() + " - " + this.getType().name() +" #"+this.getUsername()+" > " + this.getMsg() +
-                "\n";
+        return "<" + this.getTime() + " - " + this.getType().name() + (hasRoom() ? " [" + room + "]" : "")
+                + " #" + this.getUsername() + (getRecipient().isEmpty() ? "" : " @" + recipient)
+                + " > " + this.getMsg() + "\n";
+    }
+
+
+    
+    /**
+     * An epoch second and its display text, immutable so it can be shared between threads.
+     */
+    private static final class FormattedSecond {
+        
+        private final long second;
+        private final String text;
+
+        
+        private FormattedSecond(long second, String text) {
+            
+            this.second = second;
+            this.text = text;
+        }
     }
 }
@@ -0,0 +1,132 @@
+package com.chat.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-message DEFLATE compression of message frames, for the clients that negotiated it
+ * with the {@link Handshake#DEFLATE} capability.
+ * A compressed payload is the type byte with its high bit set, the varint size of the rest
+ * of the plain payload, then that rest deflated. Chat text shrinks to about a third, but
+ * deflating a few kilobytes costs the sender tens of microseconds and the reader about half
+ * that, while a short line hardly shrinks at all. So the server only compresses payloads
+ * above a threshold, once per broadcast, and keeps the plain frame when it saves nothing.
+ */
+public final class Compression {
+    
+    // the bit of the type byte marking a compressed payload
+    public static final int COMPRESSED = 0x80;
+    
+    // a deflater per sending thread, the broadcasts of the readers and event loops never share one
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    
+    private Compression() {
+    }
+
+    
+    /**
+     * Compresses a message frame.
+     *
+     * @param frame the plain frame, header included, which is left untouched
+     * @return the compressed frame positioned at its start, or null if it would not be smaller
+     */
+    public static ByteBuffer compress(ByteBuffer frame) {
+        
+        ByteBuffer plain = frame.duplicate();
+        int frameSize = plain.remaining();
+        // skip the varint header, the payload runs to the end of the frame
+        while (plain.get() < 0) ;
+        byte type = plain.get();
+        
+        int restSize = plain.remaining();
+        byte[] rest = new byte[restSize];
+        plain.get(rest);
+        
+        // anything past this size would not save a byte
+        byte[] deflated = new byte[frameSize];
+        Deflater deflater = DEFLATERS.get();
+        int deflatedSize;
+        
+        try {
+            deflater.setInput(rest);
+            deflater.finish();
+            deflatedSize = deflater.deflate(deflated);
+            if (!deflater.finished()) return null;
+        } 
+        
+        finally {
+            deflater.reset();
+        }
+        
+        int payloadSize = 1 + Frames.varintSize(restSize) + deflatedSize;
+        if (Frames.varintSize(payloadSize) + payloadSize >= frameSize) return null;
+        
+        ByteBuffer compressed = Frames.allocate(payloadSize);
+        compressed.put((byte) (type | COMPRESSED));
+        Frames.putVarint(compressed, restSize);
+        compressed.put(deflated, 0, deflatedSize);
+        compressed.flip();
+        return compressed;
+    }
+
+    
+    /**
+     * Tells whether a frame payload is compressed, without consuming it.
+     *
+     * @param payload the frame payload without its header
+     * @return true if the payload must be inflated before it is decoded
+     */
+    public static boolean isCompressed(ByteBuffer payload) {
+        
+        return payload.hasRemaining() && (payload.get(payload.position()) & COMPRESSED) != 0;
+    }
+
+    
+    /**
+     * Inflates a compressed frame payload back into the plain payload.
+     *
+     * @param payload  the compressed payload without its header
+     * @param inflater the inflater of the reading thread
+     * @return the plain payload, ready for {@link MessageDecoder}
+     * @throws IOException if the payload is corrupt
+     */
+    public static ByteBuffer inflate(ByteBuffer payload, Inflater inflater) throws IOException {
+        
+        byte type = (byte) (payload.get() & ~COMPRESSED);
+        int restSize = Frames.getVarint(payload);
+        Frames.checkLength(restSize);
+        
+        byte[] plain = new byte[1 + restSize];
+        plain[0] = type;
+        int inflated = 0;
+        
+        try {
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            while (inflated < restSize) {
+                int n = inflater.inflate(plain, 1 + inflated, restSize - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += n;
+            }
+        } 
+        
+        catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        } 
+        
+        finally {
+            inflater.reset();
+        }
+        
+        if (inflated != restSize) throw new IOException("Truncated compressed frame");
+        return ByteBuffer.wrap(plain);
+    }
+}
@@ -0,0 +1,229 @@
+package com.chat.common.io;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed framing and the primitives of the binary wire protocol.
+ * Each frame is a varint payload length followed by the payload, so a reader
+ * (blocking or non-blocking) always knows how many bytes make up one frame.
+ * Strings travel as a varint byte count followed by their UTF-8 bytes.
+ */
+public final class Frames {
+
+    // the largest payload accepted from the wire
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    // the longest a varint of an int can be
+    public static final int MAX_VARINT_SIZE = 5;
+
+    
+    private Frames() {
+    }
+
+    
+    /**
+     * Returns the number of bytes a value takes as a varint.
+     *
+     * @param value a non negative value
+     * @return the varint size
+     */
+    public static int varintSize(int value) {
+        
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    
+    /**
+     * Writes a non negative value as a varint, seven bits per byte.
+     *
+     * @param buffer the buffer to write to
+     * @param value  the value to write
+     */
+    public static void putVarint(ByteBuffer buffer, int value) {
+        
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    
+    /**
+     * Reads a varint.
+     *
+     * @param buffer the buffer to read from
+     * @return the value read
+     * @throws IOException if the varint is malformed or truncated
+     */
+    public static int getVarint(ByteBuffer buffer) throws IOException {
+        
+        int value = 0;
+        
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            if (!buffer.hasRemaining()) throw new EOFException("Truncated varint");
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    
+    /**
+     * Reads the payload length of the frame starting at the buffer position, without consuming it.
+     *
+     * @param buffer the buffer holding the received bytes
+     * @return the payload length, or -1 if the header is not complete yet
+     * @throws IOException if the length is invalid
+     */
+    public static int peekLength(ByteBuffer buffer) throws IOException {
+        
+        int value = 0;
+        int limit = Math.min(buffer.remaining(), MAX_VARINT_SIZE);
+        
+        for (int i = 0; i < limit; ++i) {
+            byte b = buffer.get(buffer.position() + i);
+            value |= (b & 0x7F) << (7 * i);
+            if (b >= 0) {
+                checkLength(value);
+                return value;
+            }
+        }
+        if (limit == MAX_VARINT_SIZE) throw new IOException("Malformed frame header");
+        return -1;
+    }
+
+    
+    /**
+     * Checks a length read from a frame header.
+     *
+     * @param length the payload length
+     * @throws IOException if the length is negative or too large
+     */
+    public static void checkLength(int length) throws IOException {
+        
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length " + length);
+    }
+
+    
+    /**
+     * Allocates a frame and writes its header.
+     *
+     * @param payloadSize the size of the payload to come
+     * @return a buffer positioned after the header
+     */
+    public static ByteBuffer allocate(int payloadSize) {
+        
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(payloadSize) + payloadSize);
+        putVarint(frame, payloadSize);
+        return frame;
+    }
+
+    
+    /**
+     * Returns the encoded size of a string already converted to UTF-8.
+     *
+     * @param utf8 the UTF-8 bytes of the string
+     * @return the size on the wire
+     */
+    public static int stringSize(byte[] utf8) {
+        
+        return varintSize(utf8.length) + utf8.length;
+    }
+
+    
+    /**
+     * Converts a string to UTF-8, a null string becoming empty.
+     *
+     * @param value the string
+     * @return the UTF-8 bytes
+     */
+    public static byte[] utf8(String value) {
+        
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    
+    /**
+     * Writes a string already converted to UTF-8.
+     *
+     * @param buffer the buffer to write to
+     * @param utf8   the UTF-8 bytes of the string
+     */
+    public static void putString(ByteBuffer buffer, byte[] utf8) {
+        
+        putVarint(buffer, utf8.length);
+        buffer.put(utf8);
+    }
+
+    
+    /**
+     * Reads a string.
+     *
+     * @param buffer the buffer to read from
+     * @return the string read
+     * @throws IOException if the string is truncated
+     */
+    public static String getString(ByteBuffer buffer) throws IOException {
+        
+        int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) throw new EOFException("Truncated string");
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    
+    /**
+     * Blocks until a complete frame has been read.
+     *
+     * @param in the stream to read from
+     * @return the payload of the frame
+     * @throws IOException if the stream fails or the frame is invalid
+     */
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        
+        int length = 0;
+        
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 7 * MAX_VARINT_SIZE) throw new IOException("Malformed frame header");
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        checkLength(length);
+        
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return ByteBuffer.wrap(payload);
+    }
+
+    
+    /**
+     * Writes a complete frame and flushes the stream.
+     *
+     * @param out   the stream to write to
+     * @param frame the frame, header included
+     * @throws IOException if the stream fails
+     */
+    public static void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+        
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        out.flush();
+    }
+}
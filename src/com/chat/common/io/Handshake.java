@@ -0,0 +1,175 @@
+package com.chat.common.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The first frame sent in each direction of a connection.
+ * The client introduces itself with its username and the session it wants to resume,
+ * the server answers with the name it accepted, the session of the connection and the
+ * last message sequence it handled in that session. The client also offers the capabilities
+ * it supports and the server answers with those it accepted. Both sides check the magic number
+ * and protocol version, so a peer speaking anything else is dropped before any message
+ * is exchanged.
+ */
+public class Handshake {
+
+    // "CHAT" in ASCII
+    public static final int MAGIC = 0x43484154;
+
+    // the version of the wire protocol spoken by this build
+    public static final byte VERSION = 6;
+
+    // the capability of receiving compressed message frames, see Compression
+    public static final int DEFLATE = 0x01;
+
+    // the protocol version of the peer
+    private final int version;
+
+    // the capability bits offered by the client or accepted by the server
+    private final int flags;
+
+    // the username the client logs in with
+    private final String username;
+
+    // the session token, 0 for a new session
+    private final long session;
+
+    // the last message sequence the server handled in the session, 0 from the client
+    private final long acked;
+
+    
+    /**
+     * Constructs a handshake for this protocol version, starting a new session.
+     *
+     * @param username the username
+     */
+    public Handshake(String username) {
+        
+        this(username, 0, 0);
+    }
+
+    
+    /**
+     * Constructs a handshake for this protocol version.
+     *
+     * @param username the username
+     * @param session  the session token, 0 for a new session
+     * @param acked    the last message sequence handled in the session
+     */
+    public Handshake(String username, long session, long acked) {
+        
+        this(username, session, acked, 0);
+    }
+
+    
+    /**
+     * Constructs a handshake for this protocol version, with capabilities.
+     *
+     * @param username the username
+     * @param session  the session token, 0 for a new session
+     * @param acked    the last message sequence handled in the session
+     * @param flags    the capability bits
+     */
+    public Handshake(String username, long session, long acked, int flags) {
+        
+        this(VERSION, flags, username, session, acked);
+    }
+
+    
+    private Handshake(int version, int flags, String username, long session, long acked) {
+        
+        this.version = version;
+        this.flags = flags;
+        this.username = username;
+        this.session = session;
+        this.acked = acked;
+    }
+
+    
+    public int getVersion() {
+        return version;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean has(int capability) {
+        return (flags & capability) == capability;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getSession() {
+        return session;
+    }
+
+    public long getAcked() {
+        return acked;
+    }
+
+    
+    /**
+     * Encodes this handshake into a complete frame.
+     *
+     * @return a buffer positioned at the start of the frame
+     */
+    public ByteBuffer encode() {
+        
+        byte[] name = Frames.utf8(username);
+        ByteBuffer frame = Frames.allocate(4 + 1 + 1 + Frames.stringSize(name) + 8 + 8);
+        frame.putInt(MAGIC);
+        frame.put((byte) version);
+        frame.put((byte) flags);
+        Frames.putString(frame, name);
+        frame.putLong(session);
+        frame.putLong(acked);
+        frame.flip();
+        return frame;
+    }
+
+    
+    /**
+     * Decodes and validates the payload of a handshake frame.
+     *
+     * @param payload the frame payload without its header
+     * @return the handshake
+     * @throws IOException if the peer does not speak this protocol
+     */
+    public static Handshake decode(ByteBuffer payload) throws IOException {
+        
+        try {
+            if (payload.getInt() != MAGIC) throw new IOException("Not a chat client");
+            int version = payload.get();
+            if (version != VERSION) throw new IOException("Unsupported protocol version " + version);
+            int flags = payload.get() & 0xFF;
+            String username = Frames.getString(payload);
+            if (username.isEmpty()) throw new IOException("Missing username");
+            long session = payload.getLong();
+            long acked = payload.getLong();
+            return new Handshake(version, flags, username, session, acked);
+        } 
+        
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated handshake");
+        }
+    }
+
+    
+    /**
+     * Blocks until a handshake has been read from a stream.
+     *
+     * @param in the stream to read from
+     * @return the handshake
+     * @throws IOException if the stream fails or the peer does not speak this protocol
+     */
+    public static Handshake read(DataInputStream in) throws IOException {
+        
+        return decode(Frames.readFrame(in));
+    }
+}
@@ -0,0 +1,64 @@
+package com.chat.common.io;
+
+import com.chat.common.data.Message;
+import com.chat.common.utils.Type;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames written by {@link MessageEncoder} back into messages.
+ */
+public final class MessageDecoder {
+
+    
+    private MessageDecoder() {
+    }
+
+    
+    /**
+     * Decodes the payload of a message frame.
+     *
+     * @param payload the frame payload without its header
+     * @return the decoded message
+     * @throws IOException if the payload is corrupt
+     */
+    public static Message decode(ByteBuffer payload) throws IOException {
+        
+        try {
+            Message msg = new Message();
+            msg.setType(Type.fromVal(payload.get()));
+            msg.setTimestamp(payload.getLong());
+            msg.setOffset(payload.getLong());
+            msg.setId(payload.getLong());
+            msg.setUsername(Frames.getString(payload));
+            msg.setRoom(Frames.getString(payload));
+            msg.setRecipient(Frames.getString(payload));
+            msg.setMsg(Frames.getString(payload));
+            return msg;
+        } 
+        
+        catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message frame");
+        } 
+        
+        catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    
+    /**
+     * Blocks until a message has been read from a stream.
+     *
+     * @param in the stream to read from
+     * @return the decoded message
+     * @throws IOException if the stream fails or the frame is corrupt
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        
+        return decode(Frames.readFrame(in));
+    }
+}
@@ -0,0 +1,61 @@
+package com.chat.common.io;
+
+import com.chat.common.data.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a {@link Message} into one frame of the binary wire protocol.
+ * The payload is the type byte, the epoch millis timestamp, the log offset, the message ID, then the username,
+ * the room, the recipient (both empty for none) and the text as UTF-8 strings.
+ */
+public final class MessageEncoder {
+
+    
+    private MessageEncoder() {
+    }
+
+    
+    /**
+     * Encodes a message into a complete frame.
+     *
+     * @param msg the message to encode
+     * @return a buffer positioned at the start of the frame
+     */
+    public static ByteBuffer encode(Message msg) {
+        
+        byte[] username = Frames.utf8(msg.getUsername());
+        byte[] room = Frames.utf8(msg.hasRoom() ? msg.getRoom() : null);
+        byte[] recipient = Frames.utf8(msg.getRecipient());
+        byte[] text = Frames.utf8(msg.getMsg());
+        int payloadSize = 1 + 8 + 8 + 8 + Frames.stringSize(username) + Frames.stringSize(room)
+                + Frames.stringSize(recipient) + Frames.stringSize(text);
+
+        ByteBuffer frame = Frames.allocate(payloadSize);
+        frame.put((byte) msg.getType().getVal());
+        frame.putLong(msg.getTimestamp());
+        frame.putLong(msg.getOffset());
+        frame.putLong(msg.getId());
+        Frames.putString(frame, username);
+        Frames.putString(frame, room);
+        Frames.putString(frame, recipient);
+        Frames.putString(frame, text);
+        frame.flip();
+        return frame;
+    }
+
+    
+    /**
+     * Encodes a message and writes it to a stream.
+     *
+     * @param out the stream to write to
+     * @param msg the message to write
+     * @throws IOException if the stream fails
+     */
+    public static void write(OutputStream out, Message msg) throws IOException {
+        
+        Frames.writeFrame(out, encode(msg));
+    }
+}
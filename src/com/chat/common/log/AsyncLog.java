@@ -0,0 +1,359 @@
+package com.chat.common.log;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Asynchronous logging, so that console output never sits on a hot path.
+ * Callers only claim a slot of a lock-free ring buffer and return; a background thread
+ * drains the ring in batches, formats the records as key=value lines and writes each
+ * batch with a single call. When the ring is full records are dropped and counted
+ * rather than making the caller wait. Repeated warnings and errors are rate limited
+ * per source and text, and the number of suppressed copies is reported afterwards.
+ * The threshold is set with -Dchat.log.level, INFO by default.
+ */
+public final class AsyncLog {
+    
+    // the size of the ring, a power of two
+    private static final int CAPACITY = 8192;
+    
+    // the most records written in one batch
+    private static final int BATCH_SIZE = 256;
+    
+    // how many copies of the same warning or error are written per window
+    private static final int REPEATS_PER_WINDOW = 5;
+    
+    // the length of a rate limiting window
+    private static final long WINDOW_MILLIS = 10000;
+    
+    // the most distinct warnings tracked by the rate limiter
+    private static final int MAX_TRACKED = 1024;
+    
+    // how long the drain thread sleeps when the ring is empty
+    private static final long IDLE_NANOS = 2000000;
+    
+    // how long the ring must stay empty at exit, so the shutdown hooks of others are logged too
+    private static final long EXIT_QUIET_NANOS = 250000000L;
+    
+    // the longest the exit waits for the drain thread
+    private static final long EXIT_WAIT_MILLIS = 3000;
+    
+    // the format of the timestamps
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    
+    // the log of the process
+    private static final AsyncLog INSTANCE = new AsyncLog(System.out, threshold());
+    
+    // the records, claimed by producers through tail and released by the drain thread through head
+    private final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<Record>(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    
+    // the records lost because the ring was full
+    private final AtomicLong dropped = new AtomicLong();
+    
+    // the recent warnings and errors, keyed by source and text
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+    
+    // where the records are written
+    private final PrintStream out;
+    
+    // the lowest level written
+    private final Level threshold;
+    
+    // the thread draining the ring
+    private final Thread drainer;
+    
+    // set when the process exits, the drain thread then empties the ring and stops
+    private volatile boolean closing;
+
+    
+    private AsyncLog(PrintStream out, Level threshold) {
+        
+        this.out = out;
+        this.threshold = threshold;
+        
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                drainLoop();
+            }
+        }, "async-log");
+        drainer.setDaemon(true);
+        drainer.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                closing = true;
+                LockSupport.unpark(drainer);
+                try {
+                    drainer.join(EXIT_WAIT_MILLIS);
+                } 
+                
+                catch (InterruptedException e) {
+                } // exiting anyway
+            }
+        }, "async-log-flush"));
+    }
+
+    
+    private static Level threshold() {
+        
+        String level = System.getProperty("chat.log.level");
+        try {
+            return level == null ? Level.INFO : Level.valueOf(level.trim().toUpperCase());
+        } 
+        
+        catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    
+    /**
+     * Tells whether records of a level are written, to skip building costly texts.
+     *
+     * @param level the level
+     * @return true if the level is at or above the threshold
+     */
+    public static boolean isEnabled(Level level) {
+        
+        return level.compareTo(INSTANCE.threshold) >= 0;
+    }
+
+    
+    /**
+     * Logs a detail.
+     *
+     * @param source the component logging
+     * @param text   the text of the record
+     */
+    public static void debug(String source, String text) {
+        
+        INSTANCE.log(Level.DEBUG, source, text, null);
+    }
+
+    
+    /**
+     * Logs an event.
+     *
+     * @param source the component logging
+     * @param text   the text of the record
+     */
+    public static void info(String source, String text) {
+        
+        INSTANCE.log(Level.INFO, source, text, null);
+    }
+
+    
+    /**
+     * Logs a failure the program recovers from.
+     *
+     * @param source the component logging
+     * @param text   the text of the record
+     * @param error  the cause, may be null
+     */
+    public static void warn(String source, String text, Throwable error) {
+        
+        INSTANCE.log(Level.WARN, source, text, error);
+    }
+
+    
+    /**
+     * Logs an unexpected failure, with its stack trace.
+     *
+     * @param source the component logging
+     * @param text   the text of the record
+     * @param error  the cause, may be null
+     */
+    public static void error(String source, String text, Throwable error) {
+        
+        INSTANCE.log(Level.ERROR, source, text, error);
+    }
+
+    
+    /**
+     * Queues a record for the drain thread, unless it is below the threshold,
+     * a rate limited repeat, or the ring is full.
+     *
+     * @param level  the level of the record
+     * @param source the component logging
+     * @param text   the text of the record
+     * @param error  the cause, may be null
+     */
+    public void log(Level level, String source, String text, Throwable error) {
+        
+        if (level.compareTo(threshold) < 0) return;
+        
+        int suppressed = 0;
+        if (level.compareTo(Level.WARN) >= 0) {
+            suppressed = admit(source + '|' + text);
+            if (suppressed < 0) return;
+        }
+
+        Record record = new Record(level, System.currentTimeMillis(), Thread.currentThread().getName(),
+                source, text, error, suppressed);
+        
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        
+        slots.lazySet((int) (claimed & (CAPACITY - 1)), record);
+    }
+
+    
+    /**
+     * Counts a warning in its rate limiting window.
+     *
+     * @return -1 to drop it, otherwise the copies suppressed since the last one written
+     */
+    private int admit(String key) {
+        
+        long now = System.currentTimeMillis();
+        Window window = windows.get(key);
+        
+        if (window == null) {
+            if (windows.size() >= MAX_TRACKED) windows.clear();
+            Window created = new Window(now);
+            window = windows.putIfAbsent(key, created);
+            if (window == null) window = created;
+        }
+
+        long start = window.start.get();
+        if (now - start >= WINDOW_MILLIS && window.start.compareAndSet(start, now)) {
+            window.count.set(0);
+        }
+        if (window.count.incrementAndGet() > REPEATS_PER_WINDOW) {
+            window.suppressed.incrementAndGet();
+            return -1;
+        }
+        return window.suppressed.getAndSet(0);
+    }
+
+    
+    private void drainLoop() {
+        
+        StringBuilder batch = new StringBuilder(8192);
+        long quietSince = 0;
+        
+        while (true) {
+            int count = 0;
+            long position = head;
+            Record record;
+            
+            while (count < BATCH_SIZE && (record = slots.get((int) (position & (CAPACITY - 1)))) != null) {
+                slots.lazySet((int) (position & (CAPACITY - 1)), null);
+                head = ++position;
+                format(record, batch);
+                count++;
+            }
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                format(new Record(Level.WARN, System.currentTimeMillis(), "async-log", "AsyncLog",
+                        lost + " log records dropped, the log could not keep up", null, 0), batch);
+            }
+
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            }
+            
+            if (count == 0) {
+                if (closing) {
+                    if (quietSince == 0) quietSince = System.nanoTime();
+                    else if (System.nanoTime() - quietSince >= EXIT_QUIET_NANOS) return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            } 
+            
+            else {
+                quietSince = 0;
+            }
+        }
+    }
+
+    
+    private static void format(Record record, StringBuilder line) {
+        
+        line.append("ts=");
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(record.millis), line);
+        line.append(" level=").append(record.level);
+        line.append(" thread=").append(record.thread);
+        line.append(" source=").append(record.source);
+        line.append(" msg=\"").append(record.text.replace("\"", "\\\"").replace("\n", " ").trim()).append('"');
+        if (record.error != null) line.append(" error=\"").append(String.valueOf(record.error).replace("\"", "\\\"")).append('"');
+        if (record.suppressed > 0) line.append(" suppressed=").append(record.suppressed);
+        line.append(System.lineSeparator());
+
+        if (record.error != null && record.level == Level.ERROR) {
+            StringWriter trace = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    
+    /**
+     * A record waiting in the ring.
+     */
+    private static class Record {
+        
+        final Level level;
+        final long millis;
+        final String thread;
+        final String source;
+        final String text;
+        final Throwable error;
+        final int suppressed;
+
+        
+        Record(Level level, long millis, String thread, String source, String text, Throwable error, int suppressed) {
+            
+            this.level = level;
+            this.millis = millis;
+            this.thread = thread;
+            this.source = source;
+            this.text = text == null ? "" : text;
+            this.error = error;
+            this.suppressed = suppressed;
+        }
+    }
+
+    
+    /**
+     * The rate limiting window of one kind of warning.
+     */
+    private static class Window {
+        
+        final AtomicLong start;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        
+        Window(long start) {
+            
+            this.start = new AtomicLong(start);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.chat.common.log;
+
+/**
+ * The severity of a log record.
+ */
+public enum Level {
+    
+    DEBUG, // details only useful when chasing a problem
+    INFO,  // the normal life of the server and clients
+    WARN,  // something failed but the program carries on
+    ERROR  // something failed that should not have
+}
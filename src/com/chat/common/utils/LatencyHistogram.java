@@ -0,0 +1,139 @@
+package com.chat.common.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe histogram of non negative values, in the spirit of HdrHistogram.
+ * Each power of two is split into 32 linear buckets, so any value is recorded with
+ * about 3% precision in a few kilobytes, and recording is a single atomic increment.
+ */
+public class LatencyHistogram {
+    
+    // the number of bits of precision kept below the highest bit
+    private static final int SUB_BUCKET_BITS = 5;
+    
+    // the number of linear buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    // enough buckets for any positive long
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    // the count of each bucket
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    // the number of values recorded
+    private final AtomicLong total = new AtomicLong();
+    
+    // the sum of the values recorded
+    private final AtomicLong sum = new AtomicLong();
+    
+    // the highest value recorded
+    private final AtomicLong max = new AtomicLong();
+
+    
+    /**
+     * Records a value, negative values counting as zero.
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until the highest value sticks
+        }
+    }
+
+    
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        
+        return total.get();
+    }
+
+    
+    /**
+     * Returns the highest value recorded.
+     *
+     * @return the maximum
+     */
+    public long getMax() {
+        
+        return max.get();
+    }
+
+    
+    /**
+     * Returns the mean of the values recorded.
+     *
+     * @return the mean, 0 when empty
+     */
+    public double getMean() {
+        
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    
+    /**
+     * Returns the value below which the given percentage of the values fall.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, 0 when empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        
+        long count = total.get();
+        if (count == 0) return 0;
+        
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    
+    /**
+     * Forgets every value recorded.
+     */
+    public void reset() {
+        
+        for (int i = 0; i < BUCKETS; ++i) counts.set(i, 0);
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    
+    private static int indexOf(long value) {
+        
+        if (value < SUB_BUCKETS) return (int) value;
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    
+    private static long highestOf(int index) {
+        
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
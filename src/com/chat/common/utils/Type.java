@@ -9,10 +9,27 @@ public enum Type {
     MSG(1),       // Represents a message
     SIGNOUT(2),   // Represents a sign-out request
     ERROR(3),     // Represents an error message
-    INFO(4);      // Represents an informational message
+    INFO(4),      // Represents an informational message
+    JOIN(5),      // Represents a request to join a room
+    LEAVE(6),     // Represents a request to leave a room
+    DIRECT(7),    // Represents a private message to one user
+    HISTORY(8),   // Represents a request for, or the end of, earlier messages
+    STATS(9),     // Represents a request for, or a snapshot of, the server metrics
+    PING(10),     // Represents a liveness probe, answered with a PONG
+    PONG(11),     // Represents the answer to a PING
+    SHUTDOWN(12), // Represents the notice that the server is going down
+    NODES(13),    // Represents the members of the cluster, exchanged between nodes
+    ACK(14);      // Represents the last message sequence the server handled for a client
 
     private int val;
 
+    // the constants indexed by their value
+    private static final Type[] BY_VAL = new Type[values().length];
+
+    static {
+        for (Type type : values()) BY_VAL[type.val] = type;
+    }
+
     
     /**
      * Constructs a Type enum constant with the specified value.
@@ -34,4 +51,19 @@ public enum Type {
         
         return val;
     }
+
+    
+    /**
+     * Returns the Type enum constant with the specified value.
+     *
+     * @param value the integer value of the constant
+     * @return the matching constant
+     * @throws IllegalArgumentException if no constant has this value
+     */
+    public static Type fromVal(int value) {
+        
+        if (value < 0 || value >= BY_VAL.length || BY_VAL[value] == null)
+            throw new IllegalArgumentException("Unknown message type " + value);
+        return BY_VAL[value];
+    }
 }
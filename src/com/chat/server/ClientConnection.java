@@ -0,0 +1,76 @@
+package com.chat.server;
+
+import com.chat.common.data.Message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents one client connected to the server, whatever engine serves it.
+ */
+public interface ClientConnection {
+
+    /**
+     * Gets the unique ID of this connection.
+     *
+     * @return the client ID
+     */
+    int getClientId();
+
+    /**
+     * Gets the name of the user connected.
+     *
+     * @return the username
+     */
+    String getUsername();
+
+    /**
+     * Gets the date since the client is active.
+     *
+     * @return the connection date
+     */
+    String getDate();
+
+    /**
+     * Sends a message to the client.
+     *
+     * @param msg the message to send
+     * @return false if the client can no longer be reached
+     */
+    boolean writeMsg(Message msg);
+
+    /**
+     * Sends an already encoded message frame to the client.
+     * The frame is shared by every recipient of a broadcast, so implementations
+     * must not change it and write a duplicate of it instead.
+     *
+     * @param frame the read-only frame to send
+     * @return false if the client can no longer be reached
+     */
+    boolean writeFrame(ByteBuffer frame);
+
+    /**
+     * Tells whether the client accepted compressed frames in its handshake.
+     *
+     * @return true if large broadcasts may be sent to it compressed
+     */
+    boolean acceptsCompression();
+
+    /**
+     * Gets the number of frames waiting to be written to the client.
+     *
+     * @return the queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Gets when the client was last heard from.
+     *
+     * @return the epoch millis of the last frame read
+     */
+    long getLastActivity();
+
+    /**
+     * Closes the connection.
+     */
+    void close();
+}
@@ -0,0 +1,127 @@
+package com.chat.server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients connected to the server, keyed by client ID and indexed by username.
+ * Adds and removes are O(1) and lock-free for readers; iteration is weakly
+ * consistent, so a broadcast sees a snapshot that never throws while clients
+ * come and go.
+ */
+public class ClientRegistry {
+    
+    // the connected clients by client ID
+    private final ConcurrentHashMap<Integer, ClientConnection> clients =
+            new ConcurrentHashMap<Integer, ClientConnection>();
+    
+    // the connections of each username, a name logged in twice has two
+    private final ConcurrentHashMap<String, Set<ClientConnection>> byUsername =
+            new ConcurrentHashMap<String, Set<ClientConnection>>();
+
+    
+    /**
+     * Adds a client.
+     *
+     * @param client the client that joined
+     */
+    public void add(ClientConnection client) {
+        
+        clients.put(client.getClientId(), client);
+        
+        while (true) {
+            Set<ClientConnection> logins = byUsername.get(client.getUsername());
+            if (logins == null) {
+                Set<ClientConnection> created = ConcurrentHashMap.<ClientConnection>newKeySet();
+                logins = byUsername.putIfAbsent(client.getUsername(), created);
+                if (logins == null) logins = created;
+            }
+            logins.add(client);
+            // the set may have been dropped by a last remove in between, retry on the live one
+            if (byUsername.get(client.getUsername()) == logins) return;
+        }
+    }
+
+    
+    /**
+     * Removes a client.
+     *
+     * @param id the client ID
+     * @return the client removed, or null if it was not registered
+     */
+    public ClientConnection remove(int id) {
+        
+        ClientConnection client = clients.remove(id);
+        if (client == null) return null;
+        
+        Set<ClientConnection> logins = byUsername.get(client.getUsername());
+        if (logins != null && logins.remove(client) && logins.isEmpty())
+            byUsername.remove(client.getUsername(), logins);
+        return client;
+    }
+
+    
+    /**
+     * Gets a client by ID.
+     *
+     * @param id the client ID
+     * @return the client, or null if it is not registered
+     */
+    public ClientConnection get(int id) {
+        
+        return clients.get(id);
+    }
+
+    
+    /**
+     * Gets a client by username. When the user is logged in more than once the latest login wins.
+     *
+     * @param username the username
+     * @return the client, or null if the user is offline
+     */
+    public ClientConnection get(String username) {
+        
+        Set<ClientConnection> logins = byUsername.get(username);
+        if (logins == null) return null;
+        
+        ClientConnection latest = null;
+        for (ClientConnection client : logins) {
+            if (latest == null || client.getClientId() > latest.getClientId()) latest = client;
+        }
+        return latest;
+    }
+
+    
+    /**
+     * Returns a live view of the clients, safe to iterate while they change.
+     *
+     * @return the connected clients
+     */
+    public Collection<ClientConnection> all() {
+        
+        return clients.values();
+    }
+
+    
+    /**
+     * Returns the number of clients.
+     *
+     * @return the number of connected clients
+     */
+    public int size() {
+        
+        return clients.size();
+    }
+
+    
+    /**
+     * Tells whether no client is connected.
+     *
+     * @return true if the registry is empty
+     */
+    public boolean isEmpty() {
+        
+        return clients.isEmpty();
+    }
+}
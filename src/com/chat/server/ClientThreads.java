@@ -0,0 +1,73 @@
+package com.chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads running the clients of the blocking engine.
+ * Virtual threads are looked up at runtime, since the project still compiles for Java 8:
+ * on a runtime without Thread.ofVirtual() the factory falls back to platform threads.
+ */
+public final class ClientThreads {
+
+    
+    private ClientThreads() {
+    }
+
+    
+    /**
+     * Creates a thread factory for the given mode.
+     *
+     * @param mode   platform or virtual threads
+     * @param prefix the prefix of the thread names
+     * @return the thread factory
+     */
+    public static ThreadFactory factory(ServerConfig.ThreadMode mode, String prefix) {
+        
+        if (mode == ServerConfig.ThreadMode.VIRTUAL) {
+            ThreadFactory virtual = virtualFactory(prefix);
+            if (virtual != null) return virtual;
+        }
+        return platformFactory(prefix);
+    }
+
+    
+    /**
+     * Tells whether this runtime can create virtual threads.
+     *
+     * @return true if Thread.ofVirtual() exists
+     */
+    public static boolean isVirtualSupported() {
+        
+        return virtualFactory("probe-") != null;
+    }
+
+    
+    private static ThreadFactory platformFactory(final String prefix) {
+        
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, prefix + count.getAndIncrement());
+            }
+        };
+    }
+
+    
+    private static ThreadFactory virtualFactory(String prefix) {
+        
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } 
+        
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
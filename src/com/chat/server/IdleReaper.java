@@ -0,0 +1,215 @@
+package com.chat.server;
+
+import com.chat.common.data.Message;
+import com.chat.common.log.AsyncLog;
+import com.chat.common.utils.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Finds the connections that stopped talking, half-open ones included, with a single
+ * thread turning a hashed timer wheel. Each client sits in the slot of the tick when it
+ * should next be looked at; reads only update its last activity time, and the client is
+ * moved to a later slot when its tick comes. A client idle for half the timeout is sent
+ * a PING, one idle for the whole timeout is evicted with the others found in that tick.
+ */
+public class IdleReaper {
+    
+    // the number of slots of the wheel, a power of two
+    private static final int SLOTS = 64;
+    
+    // the connections to look at, by tick
+    private final Queue<Entry>[] wheel;
+    
+    // the time without reads after which a client is evicted
+    private final long timeoutMillis;
+    
+    // the time covered by one slot
+    private final long tickMillis;
+    
+    // the tick the wheel thread is at
+    private volatile long currentTick;
+    
+    // what evicts the idle clients and tells whether a client is still connected
+    private final Owner owner;
+    
+    // the thread turning the wheel
+    private final Thread thread;
+    
+    // the boolean that will be turned off to stop the reaper
+    private volatile boolean running = true;
+
+    
+    /**
+     * What the reaper needs from the server.
+     */
+    public interface Owner {
+        
+        /**
+         * Tells whether a client is still registered.
+         *
+         * @param client the client
+         * @return true if it is
+         */
+        boolean isConnected(ClientConnection client);
+
+        /**
+         * Disconnects clients found dead.
+         *
+         * @param clients the idle clients
+         */
+        void evict(List<ClientConnection> clients);
+    }
+
+    
+    /**
+     * Constructs a reaper and starts its thread.
+     *
+     * @param timeoutMillis the time without reads after which a client is evicted
+     * @param owner         the server owning the clients
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IdleReaper(long timeoutMillis, Owner owner) {
+        
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = Math.max(10, timeoutMillis / 16);
+        this.owner = owner;
+        this.wheel = new Queue[SLOTS];
+        for (int i = 0; i < SLOTS; ++i) wheel[i] = new ConcurrentLinkedQueue<Entry>();
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                turn();
+            }
+        }, "idle-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    
+    /**
+     * Starts watching a client that just connected.
+     *
+     * @param client the client
+     */
+    public void watch(ClientConnection client) {
+        
+        schedule(client, client.getLastActivity() + timeoutMillis / 2);
+    }
+
+    
+    private void schedule(ClientConnection client, long atMillis) {
+        
+        // never in the slot being processed, so the entry is seen on a later turn
+        long tick = Math.max(atMillis / tickMillis, currentTick + 1);
+        wheel[(int) (tick & (SLOTS - 1))].add(new Entry(client, tick));
+    }
+
+    
+    private void turn() {
+        
+        List<ClientConnection> dead = new ArrayList<ClientConnection>();
+        
+        while (running) {
+            long tick = currentTick;
+            long wait = (tick + 1) * tickMillis - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } 
+                
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            
+            currentTick = tick + 1;
+            expire(wheel[(int) (currentTick & (SLOTS - 1))], currentTick, dead);
+            
+            if (!dead.isEmpty()) {
+                try {
+                    owner.evict(new ArrayList<ClientConnection>(dead));
+                } 
+                
+                catch (RuntimeException e) {
+                    AsyncLog.error("IdleReaper", "Exception evicting idle clients", e);
+                }
+                dead.clear();
+            }
+        }
+    }
+
+    
+    /**
+     * Looks at the clients of a slot: pings the quiet ones, collects the dead ones
+     * and moves the others to the slot of their next deadline.
+     */
+    private void expire(Queue<Entry> slot, long tick, List<ClientConnection> dead) {
+        
+        long now = System.currentTimeMillis();
+        
+        // only the entries present now, the ones added meanwhile belong to a later turn
+        for (int i = slot.size(); i > 0; --i) {
+            Entry entry = slot.poll();
+            if (entry == null) break;
+            
+            if (entry.tick > tick) {
+                slot.add(entry); // a later round of the wheel
+                continue;
+            }
+            
+            ClientConnection client = entry.client;
+            if (!owner.isConnected(client)) continue;
+            
+            long lastActivity = client.getLastActivity();
+            long idle = now - lastActivity;
+            
+            if (idle >= timeoutMillis) {
+                dead.add(client);
+            } 
+            
+            else if (idle >= timeoutMillis / 2) {
+                client.writeMsg(new Message("", Type.PING));
+                schedule(client, lastActivity + timeoutMillis);
+            } 
+            
+            else {
+                schedule(client, lastActivity + timeoutMillis / 2);
+            }
+        }
+    }
+
+    
+    /**
+     * Stops the reaper.
+     */
+    public void stop() {
+        
+        running = false;
+        thread.interrupt();
+    }
+
+    
+    /**
+     * A client waiting in a slot for its tick.
+     */
+    private static class Entry {
+        
+        final ClientConnection client;
+        final long tick;
+
+        
+        Entry(ClientConnection client, long tick) {
+            
+            this.client = client;
+            this.tick = tick;
+        }
+    }
+}
@@ -1,29 +1,48 @@
 package com.chat.server;
 
 import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.Handshake;
+import com.chat.common.io.MessageDecoder;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.log.AsyncLog;
 import com.chat.server.impl.Server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * Represents a thread that handles communication with a client.
- * One instance of this thread will run for each client.
+ * Represents the task that handles communication with a client.
+ * One instance of this task will run for each client, on a platform or a virtual thread,
+ * next to a writer task draining the client's bounded outbound queue.
  */
-public class MsgBroadcaster extends Thread {
+public class MsgBroadcaster implements Runnable, ClientConnection {
+    
+    // how long a new client may take to send its handshake
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
     
     // the socket where this client will listen to
     Socket socket;
     
-    // The clients input stream where the server will put data
-    ObjectInputStream objectInputStream;
+    // the framed stream the client's messages are read from
+    DataInputStream in;
+    
+    // the framed stream the messages to the client are written to
+    DataOutputStream out;
     
-    // The server output stream where this client will put data
-    ObjectOutputStream objectOutputStream;
+    // a channel view of the output stream, writing shared frames without copying them first
+    WritableByteChannel outputChannel;
     
     // this is the unique clientId for this connection
     int clientId;
@@ -39,6 +58,24 @@ public class MsgBroadcaster extends Thread {
     
     // The server this client is connected to
     Server server;
+    
+    // the frames waiting to be written by the writer task
+    private final OutboundQueue outboundQueue;
+    
+    // the thread running the writer task
+    private Thread writer;
+    
+    // turned on once the connection is closed
+    private volatile boolean isClosed;
+    
+    // the frames taken from the queue and not yet flushed by the writer task
+    private volatile int writing;
+    
+    // when the last frame was read, for the idle reaper
+    private volatile long lastActivity = System.currentTimeMillis();
+    
+    // whether the client accepted compressed frames
+    private boolean compression;
 
     
     /**
@@ -52,135 +89,285 @@ public class MsgBroadcaster extends Thread {
     }
 
     
+    /**
+     * Gets the name of the user connected.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        
+        return username;
+    }
+
+    
+    /**
+     * Gets the date since the client is active.
+     *
+     * @return the connection date
+     */
+    public String getDate() {
+        
+        return date;
+    }
+
+    
     /**
      * Constructs a MsgBroadcaster instance for a client connection.
      *
+     * The handshake is left to the reader task, so a silent client never holds up the accept loop.
+     *
      * @param socket the client socket
      * @param server the server instance
+     * @throws IOException if the streams cannot be opened
      */
-    public MsgBroadcaster(Socket socket, Server server) {
+    public MsgBroadcaster(Socket socket, Server server) throws IOException {
         
         this.socket = socket;
         this.server = server;
-        this.clientId = ++Server.connectionId;
+        this.clientId = Server.connectionId.incrementAndGet();
+        this.outboundQueue = new OutboundQueue(server.getConfig());
 
-        System.out.println("Thread trying to create Object Input/Output Streams");
+        AsyncLog.debug("MsgBroadcaster", "Thread trying to create Input/Output Streams");
+        
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        outputChannel = Channels.newChannel(out);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    
+    /**
+     * Reads the handshake of the client and answers it, giving up on a client that stays silent.
+     *
+     * @return false if the client does not speak the protocol or was lost
+     */
+    private boolean handshake() {
         
         try {
-            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-            objectInputStream = new ObjectInputStream(socket.getInputStream());
-            username = (String) objectInputStream.readObject();
-            this.server.display(new Message(username + " just connected."));
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            Handshake hello = Handshake.read(in);
+            socket.setSoTimeout(0);
+            username = hello.getUsername();
+            Handshake reply = server.openSession(clientId, hello);
+            compression = reply.has(Handshake.DEFLATE);
+            Frames.writeFrame(out, reply.encode());
         } 
         
         catch (IOException e) {
-            this.server.display(new Message(e, "Exception creating new Input/output Streams"));
-            e.printStackTrace();
-            return;
-        } 
-        
-        catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            AsyncLog.warn("MsgBroadcaster", "Handshake failed with " + socket.getRemoteSocketAddress(), e);
+            return false;
         }
-
+        
         date = new Date().toString() + "\n";
+        return true;
     }
 
     
     /**
-     * The main execution logic of the thread.
+     * Starts the reader and the writer tasks of this client.
+     *
+     * @param threads the factory of the client threads
+     */
+    public void start(ThreadFactory threads) {
+        
+        writer = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+        writer.start();
+        threads.newThread(this).start();
+    }
+
+    
+    /**
+     * The main execution logic of the task: the handshake, then the messages of the client.
      */
     public void run() {
         
+        if (!handshake()) {
+            close();
+            return;
+        }
+        server.add(this);
+        
         // loop until SIGNOUT
         boolean isClientActive = true;
         
         while (isClientActive) {
             
             try {
-                message = (Message) objectInputStream.readObject();
+                message = MessageDecoder.read(in);
+                lastActivity = System.currentTimeMillis();
             } 
             
             catch (IOException e) {
-                server.display(new Message(e, username + " Exception reading Streams"));
-                e.printStackTrace();
+                if (!isClosed) AsyncLog.warn("MsgBroadcaster", username + " Exception reading Streams", e);
                 break;
+            }
+            
+            long wait = server.admit(this, message);
+            if (wait == RateLimiter.DROP) continue;
+            if (wait == RateLimiter.DISCONNECT) {
+                awaitDrained();
+                break;
+            }
+            
+            try {
+                // the client is not read meanwhile, so it is slowed down by its own socket
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
             } 
             
-            catch (ClassNotFoundException e2) {
-                e2.printStackTrace();
+            catch (InterruptedException e) {
                 break;
             }
 
-            switch (this.message.getType()) {
-                
-                case MSG:
-                    server.broadcast(this.message);
-                    break;
-                    
-                case SIGNOUT:
-                    server.display(new Message(username + " disconnected with a LOGOUT message."));
-                    isClientActive = false;
-                    break;
-                    
-                case ALL_USERS:
-                    
-                    writeMsg(new Message("List of the users connected"));
-                    
-                    // scan all the users connected
-                    for (int i = 0; i < server.getAllClients().size(); ++i) {
-                        MsgBroadcaster ct = server.getAllClients().get(i);
-                        writeMsg(new Message((i + 1) + ") " + ct.username + " since " + ct.date));
-                    }
-                    break;
+            isClientActive = server.handle(this, this.message);
+        }
+        server.disconnected(this);
+    }
+
+    
+    /**
+     * Gives the writer task a moment to send what is queued, such as the error
+     * telling the client why it is disconnected.
+     */
+    private void awaitDrained() {
+        
+        for (int i = 0; i < 20 && getQueueDepth() > 0 && !isClosed; i++) {
+            try {
+                Thread.sleep(10);
+            } 
+            
+            catch (InterruptedException e) {
+                return;
             }
         }
-        server.remove(clientId);
-        close();
-        if (server.getAllClients().size() <= 0) server.stop();
     }
 
     
     /**
-     * Closes the input/output streams and the socket associated with this thread.
+     * Closes the input/output streams and the socket associated with this client.
      */
     public void close() {
         
+        isClosed = true;
+        outboundQueue.clear();
+        if (writer != null) writer.interrupt();
+        
         try {
-            if(objectOutputStream != null) objectOutputStream.close();
+            if(out != null) out.close();
         } 
         
-        catch(Exception e) {e.printStackTrace();}
+        catch(Exception e) {AsyncLog.warn("MsgBroadcaster", "Exception closing the output stream of " + username, e);}
         
         try {
-            if(objectInputStream != null) objectInputStream.close();
+            if(in != null) in.close();
         } 
         
-        catch(Exception e) {e.printStackTrace();};
+        catch(Exception e) {AsyncLog.warn("MsgBroadcaster", "Exception closing the input stream of " + username, e);}
         
         try {
             if(socket != null) socket.close();
         } 
         
-        catch (Exception e) {e.printStackTrace();}
+        catch (Exception e) {AsyncLog.warn("MsgBroadcaster", "Exception closing the socket of " + username, e);}
     }
 
     
+    /**
+     * Sends a message to the client.
+     *
+     * @param msg the message to send
+     * @return false if the client can no longer be reached
+     */
     public boolean writeMsg(Message msg) {
         
-        if(!socket.isConnected()) {
+        return writeFrame(MessageEncoder.encode(msg));
+    }
+
+    
+    /**
+     * Queues an already encoded message frame for the writer task.
+     * Never waits on the socket, only on the queue when the BLOCK policy is configured.
+     *
+     * @param frame the read-only frame to send
+     * @return false if the client can no longer be reached
+     */
+    public boolean writeFrame(ByteBuffer frame) {
+        
+        if(isClosed || !socket.isConnected()) {
+            close();
+            return false;
+        }
+        
+        if (!outboundQueue.offer(frame.duplicate(), true)) {
+            server.display(new Message("Disconnecting " + username + ", the client is not reading fast enough."));
             close();
             return false;
         }
+        return true;
+    }
+
+    
+    @Override
+    public boolean acceptsCompression() {
+        
+        return compression;
+    }
+
+    
+    @Override
+    public int getQueueDepth() {
+        
+        return outboundQueue.size() + writing;
+    }
+
+    
+    @Override
+    public long getLastActivity() {
+        
+        return lastActivity;
+    }
+
+    
+    /**
+     * The writer task: writes queued frames, flushing once per batch of frames found waiting.
+     */
+    private void drain() {
+        
+        ServerMetrics metrics = server.getMetrics();
         
         try {
-            objectOutputStream.writeObject(msg);
+            while (!isClosed) {
+                ByteBuffer frame = outboundQueue.take();
+                writing = 1;
+                int frames = 0;
+                long bytes = 0;
+                
+                do {
+                    bytes += frame.remaining();
+                    frames++;
+                    while (frame.hasRemaining()) outputChannel.write(frame);
+                    frame = outboundQueue.poll();
+                } while (frame != null);
+                
+                out.flush();
+                writing = 0;
+                if (metrics != null) metrics.written(frames, bytes);
+            }
+        } 
+        
+        catch (InterruptedException e) {
+            // closed while waiting for frames
         } 
         
         catch(IOException e) {
-            server.display(new Message(e, "Error sending message to " + username));
-            return false;
+            if (!isClosed) {
+                server.display(new Message(e, "Error sending message to " + username));
+                close();
+            }
         }
-        return true;
     }
+
 }
@@ -0,0 +1,141 @@
+package com.chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The bounded queue of frames waiting to be written to one client.
+ * Senders only ever wait on this queue, never on the socket, and what happens
+ * when the client does not keep up is decided by the overflow policy.
+ */
+public class OutboundQueue {
+    
+    // the frames waiting to be written
+    private final ArrayBlockingQueue<ByteBuffer> frames;
+    
+    // what to do when the queue is full
+    private final ServerConfig.OverflowPolicy policy;
+    
+    // how long a sender may wait for room with the BLOCK policy
+    private final long blockTimeoutMillis;
+    
+    // the frames dropped by the DROP_OLDEST policy, counted by every broadcasting thread
+    private final LongAdder dropped = new LongAdder();
+
+    
+    /**
+     * Constructs a queue with the bounds and policy of the configuration.
+     *
+     * @param config the server configuration
+     */
+    public OutboundQueue(ServerConfig config) {
+        
+        this.frames = new ArrayBlockingQueue<ByteBuffer>(config.getOutboundQueueSize());
+        this.policy = config.getOverflowPolicy();
+        this.blockTimeoutMillis = config.getBlockTimeoutMillis();
+    }
+
+    
+    /**
+     * Queues a frame, applying the overflow policy when the queue is full.
+     *
+     * @param frame    the frame to queue
+     * @param mayBlock false when the caller must not wait, the BLOCK policy then gives up at once
+     * @return false if the client is too slow and must be disconnected
+     */
+    public boolean offer(ByteBuffer frame, boolean mayBlock) {
+        
+        if (frames.offer(frame)) return true;
+        
+        switch (policy) {
+            
+            case DROP_OLDEST:
+                while (!frames.offer(frame)) {
+                    if (frames.poll() != null) dropped.increment();
+                }
+                return true;
+                
+            case BLOCK:
+                if (!mayBlock) return false;
+                
+                try {
+                    return frames.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                } 
+                
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                
+            default:
+                return false;
+        }
+    }
+
+    
+    /**
+     * Waits for the next frame to write.
+     *
+     * @return the next frame
+     * @throws InterruptedException if the writer is stopped while waiting
+     */
+    public ByteBuffer take() throws InterruptedException {
+        
+        return frames.take();
+    }
+
+    
+    /**
+     * Takes the next frame if there is one.
+     *
+     * @return the next frame, or null if the queue is empty
+     */
+    public ByteBuffer poll() {
+        
+        return frames.poll();
+    }
+
+    
+    /**
+     * Tells whether frames are waiting.
+     *
+     * @return true if the queue is empty
+     */
+    public boolean isEmpty() {
+        
+        return frames.isEmpty();
+    }
+
+    
+    /**
+     * Returns the number of frames waiting.
+     *
+     * @return the queue depth
+     */
+    public int size() {
+        
+        return frames.size();
+    }
+
+    
+    /**
+     * Returns the number of frames dropped to make room for newer ones.
+     *
+     * @return the dropped frames
+     */
+    public long getDropped() {
+        
+        return dropped.sum();
+    }
+
+    
+    /**
+     * Discards the waiting frames.
+     */
+    public void clear() {
+        
+        frames.clear();
+    }
+}
@@ -0,0 +1,164 @@
+package com.chat.server;
+
+import com.chat.common.utils.Type;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The token buckets limiting what each connection may send, and how many chat messages
+ * each room may take. Buckets are refilled by the passing of time when they are used,
+ * never by a thread; the buckets of rooms nobody writes to are dropped once there are many.
+ */
+public class RateLimiter {
+    
+    // returned when a message must be dropped
+    public static final long DROP = -1;
+    
+    // returned when the client must be disconnected
+    public static final long DISCONNECT = -2;
+    
+    // the room buckets kept before the full ones are dropped
+    private static final int MAX_ROOM_BUCKETS = 1024;
+    
+    // how often a client dropping messages is told about it
+    private static final long WARNING_INTERVAL_NANOS = 1000000000L;
+
+    
+    /**
+     * The limit of one connection.
+     */
+    private static class ClientLimit {
+        
+        // the bucket of the connection
+        final TokenBucket bucket;
+        
+        // when the client may be told again that its messages are dropped
+        volatile long quietUntil;
+        
+        ClientLimit(TokenBucket bucket) {
+            
+            this.bucket = bucket;
+            this.quietUntil = System.nanoTime();
+        }
+    }
+    
+    // the limits of the connections, by client ID
+    private final ConcurrentHashMap<Integer, ClientLimit> clients = new ConcurrentHashMap<Integer, ClientLimit>();
+    
+    // the buckets of the rooms, by name
+    private final ConcurrentHashMap<String, TokenBucket> rooms = new ConcurrentHashMap<String, TokenBucket>();
+    
+    // the settings the buckets are created with
+    private final ServerConfig config;
+
+    
+    /**
+     * Constructs a limiter.
+     *
+     * @param config the rates, bursts and action of the server
+     */
+    public RateLimiter(ServerConfig config) {
+        
+        this.config = config;
+    }
+
+    
+    /**
+     * Tells whether a type of message counts against the limits. Answers to PINGs and
+     * sign-outs never do, holding them back would only keep a connection open longer.
+     *
+     * @param type the type of the message
+     * @return true if the message is limited
+     */
+    public static boolean isLimited(Type type) {
+        
+        return type != Type.PONG && type != Type.SIGNOUT;
+    }
+
+    
+    /**
+     * Takes a token from the bucket of a connection and, for a chat message, from the
+     * bucket of its room. With the DELAY action the tokens are always taken, borrowed
+     * from the future if needed.
+     *
+     * @param clientId the connection ID
+     * @param room     the room of a chat message, null for other messages
+     * @return 0 if the message may be handled now, else the nanoseconds until it may be
+     */
+    public long acquire(int clientId, String room) {
+        
+        boolean delay = config.getRateAction() == ServerConfig.RateAction.DELAY;
+        long now = System.nanoTime();
+        long wait = 0;
+        
+        if (config.getUserRate() > 0) {
+            TokenBucket bucket = clientLimit(clientId).bucket;
+            wait = delay ? bucket.reserve(now) : bucket.tryAcquire(now);
+            if (wait > 0 && !delay) return wait;
+        }
+        
+        if (room != null && config.getRoomRate() > 0) {
+            TokenBucket bucket = roomBucket(room, now);
+            wait = Math.max(wait, delay ? bucket.reserve(now) : bucket.tryAcquire(now));
+        }
+        return wait;
+    }
+
+    
+    /**
+     * Tells whether a client dropping messages should be told, at most once a second.
+     *
+     * @param clientId the connection ID
+     * @return true if the client should be warned now
+     */
+    public boolean warn(int clientId) {
+        
+        ClientLimit limit = clientLimit(clientId);
+        long now = System.nanoTime();
+        if (now - limit.quietUntil < 0) return false;
+        limit.quietUntil = now + WARNING_INTERVAL_NANOS;
+        return true;
+    }
+
+    
+    /**
+     * Drops the limit of a connection that is gone.
+     *
+     * @param clientId the connection ID
+     */
+    public void forget(int clientId) {
+        
+        clients.remove(clientId);
+    }
+
+    
+    private ClientLimit clientLimit(int clientId) {
+        
+        ClientLimit limit = clients.get(clientId);
+        if (limit == null) {
+            ClientLimit created = new ClientLimit(new TokenBucket(config.getUserRate(), config.getUserBurst()));
+            limit = clients.putIfAbsent(clientId, created);
+            if (limit == null) limit = created;
+        }
+        return limit;
+    }
+
+    
+    private TokenBucket roomBucket(String room, long now) {
+        
+        TokenBucket bucket = rooms.get(room);
+        if (bucket != null) return bucket;
+        
+        if (rooms.size() >= MAX_ROOM_BUCKETS) {
+            for (Iterator<Map.Entry<String, TokenBucket>> it = rooms.entrySet().iterator(); it.hasNext(); ) {
+                if (it.next().getValue().isFull(now)) it.remove();
+            }
+        }
+        
+        TokenBucket created = new TokenBucket(config.getRoomRate(), config.getRoomBurst());
+        bucket = rooms.putIfAbsent(room, created);
+        return bucket != null ? bucket : created;
+    }
+}
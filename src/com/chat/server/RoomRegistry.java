@@ -0,0 +1,133 @@
+package com.chat.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rooms of the server and the clients subscribed to each of them.
+ * A message only fans out to the subscribers of its room. Rooms are created by
+ * their first join and dropped when their last member leaves.
+ */
+public class RoomRegistry {
+    
+    // the subscribers of each room
+    private final ConcurrentHashMap<String, Set<ClientConnection>> members =
+            new ConcurrentHashMap<String, Set<ClientConnection>>();
+    
+    // the rooms of each client, so a leaving client is dropped from all of them at once
+    private final ConcurrentHashMap<Integer, Set<String>> roomsByClient =
+            new ConcurrentHashMap<Integer, Set<String>>();
+
+    
+    /**
+     * Subscribes a client to a room.
+     *
+     * @param room   the room name
+     * @param client the client joining
+     * @return false if the client was already a member
+     */
+    public boolean join(String room, ClientConnection client) {
+        
+        Set<String> rooms = roomsByClient.get(client.getClientId());
+        if (rooms == null) {
+            Set<String> created = ConcurrentHashMap.<String>newKeySet();
+            rooms = roomsByClient.putIfAbsent(client.getClientId(), created);
+            if (rooms == null) rooms = created;
+        }
+        rooms.add(room);
+
+        while (true) {
+            Set<ClientConnection> subscribers = members.get(room);
+            if (subscribers == null) {
+                Set<ClientConnection> created = ConcurrentHashMap.<ClientConnection>newKeySet();
+                subscribers = members.putIfAbsent(room, created);
+                if (subscribers == null) subscribers = created;
+            }
+            boolean added = subscribers.add(client);
+            // the set may have been dropped by a last leave in between, retry on the live one
+            if (members.get(room) == subscribers) return added;
+        }
+    }
+
+    
+    /**
+     * Unsubscribes a client from a room.
+     *
+     * @param room   the room name
+     * @param client the client leaving
+     * @return false if the client was not a member
+     */
+    public boolean leave(String room, ClientConnection client) {
+        
+        Set<String> rooms = roomsByClient.get(client.getClientId());
+        if (rooms != null) rooms.remove(room);
+
+        Set<ClientConnection> subscribers = members.get(room);
+        if (subscribers == null || !subscribers.remove(client)) return false;
+        if (subscribers.isEmpty()) members.remove(room, subscribers);
+        return true;
+    }
+
+    
+    /**
+     * Unsubscribes a client from every room it joined.
+     *
+     * @param client the client leaving the server
+     */
+    public void leaveAll(ClientConnection client) {
+        
+        Set<String> rooms = roomsByClient.remove(client.getClientId());
+        if (rooms == null) return;
+        
+        for (String room : rooms) {
+            Set<ClientConnection> subscribers = members.get(room);
+            if (subscribers == null) continue;
+            subscribers.remove(client);
+            if (subscribers.isEmpty()) members.remove(room, subscribers);
+        }
+    }
+
+    
+    /**
+     * Returns the subscribers of a room, as a view safe to iterate while they change.
+     *
+     * @param room the room name
+     * @return the members of the room, empty if the room does not exist
+     */
+    public Collection<ClientConnection> members(String room) {
+        
+        Set<ClientConnection> subscribers = members.get(room);
+        if (subscribers == null) return Collections.emptySet();
+        return subscribers;
+    }
+
+    
+    /**
+     * Returns the rooms a client is subscribed to.
+     *
+     * @param client the client
+     * @return its rooms, empty if none
+     */
+    public Collection<String> roomsOf(ClientConnection client) {
+        
+        Set<String> rooms = roomsByClient.get(client.getClientId());
+        if (rooms == null) return Collections.emptySet();
+        return rooms;
+    }
+
+    
+    /**
+     * Tells whether a client is subscribed to a room.
+     *
+     * @param room   the room name
+     * @param client the client
+     * @return true if the client is a member of the room
+     */
+    public boolean isMember(String room, ClientConnection client) {
+        
+        Set<ClientConnection> subscribers = members.get(room);
+        return subscribers != null && subscribers.contains(client);
+    }
+}
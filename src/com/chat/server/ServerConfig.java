@@ -0,0 +1,413 @@
+package com.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Startup settings of the chat server.
+ * Every setting can be overridden with a system property, e.g. -Dchat.server.engine=nio
+ */
+public class ServerConfig {
+
+    /**
+     * The I/O engine serving the client connections.
+     */
+    public enum Engine {
+        BLOCKING, // one thread per client
+        NIO       // a few selector based event loops
+    }
+
+    /**
+     * The kind of thread running each client of the blocking engine.
+     */
+    public enum ThreadMode {
+        PLATFORM, // a regular OS thread per client
+        VIRTUAL   // a virtual thread per client, on runtimes that support them
+    }
+
+    /**
+     * What happens when a client does not read fast enough and its outbound queue is full.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, // discard the oldest waiting frames
+        DISCONNECT,  // disconnect the slow client
+        BLOCK        // let the sender wait for room, then disconnect after the timeout
+    }
+
+    /**
+     * What happens to a message sent over a rate limit.
+     */
+    public enum RateAction {
+        DROP,       // discard the message, warning the sender
+        DELAY,      // stop reading the sender until the message is within the limit
+        DISCONNECT  // disconnect the sender with an error
+    }
+
+    public static final String ENGINE_PROPERTY = "chat.server.engine";
+    public static final String IO_THREADS_PROPERTY = "chat.server.ioThreads";
+    public static final String THREAD_MODE_PROPERTY = "chat.server.threads";
+    public static final String QUEUE_SIZE_PROPERTY = "chat.server.outboundQueueSize";
+    public static final String OVERFLOW_PROPERTY = "chat.server.overflow";
+    public static final String BLOCK_TIMEOUT_PROPERTY = "chat.server.blockTimeoutMillis";
+    public static final String LOG_DIR_PROPERTY = "chat.server.logDir";
+    public static final String LOG_SEGMENT_BYTES_PROPERTY = "chat.server.logSegmentBytes";
+    public static final String RECENT_MESSAGES_PROPERTY = "chat.server.recentMessages";
+    public static final String HISTORY_LIMIT_PROPERTY = "chat.server.historyLimit";
+    public static final String METRICS_PROPERTY = "chat.server.metrics";
+    public static final String STATS_PORT_PROPERTY = "chat.server.statsPort";
+    public static final String IDLE_TIMEOUT_PROPERTY = "chat.server.idleTimeoutMillis";
+    public static final String SHUTDOWN_DRAIN_PROPERTY = "chat.server.shutdownDrainMillis";
+    public static final String STOP_WHEN_EMPTY_PROPERTY = "chat.server.stopWhenEmpty";
+    public static final String NODE_ID_PROPERTY = "chat.server.nodeId";
+    public static final String CLUSTER_HOST_PROPERTY = "chat.server.clusterHost";
+    public static final String CLUSTER_PORT_PROPERTY = "chat.server.clusterPort";
+    public static final String PEERS_PROPERTY = "chat.server.peers";
+    public static final String SESSION_GRACE_PROPERTY = "chat.server.sessionGraceMillis";
+    public static final String USER_RATE_PROPERTY = "chat.server.userRate";
+    public static final String USER_BURST_PROPERTY = "chat.server.userBurst";
+    public static final String ROOM_RATE_PROPERTY = "chat.server.roomRate";
+    public static final String ROOM_BURST_PROPERTY = "chat.server.roomBurst";
+    public static final String RATE_ACTION_PROPERTY = "chat.server.rateAction";
+    public static final String COMPRESS_THRESHOLD_PROPERTY = "chat.server.compressThreshold";
+
+    // the engine used to serve clients
+    private Engine engine = Engine.BLOCKING;
+
+    // the number of event loops used by the NIO engine
+    private int ioThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // the kind of thread running each client of the blocking engine
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    // the number of frames that may wait for each client
+    private int outboundQueueSize = 1024;
+
+    // what happens when a client queue is full
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    // how long a sender may wait for room with the BLOCK policy
+    private long blockTimeoutMillis = 1000;
+
+    // the directory of the message log, null to keep no log
+    private String logDir;
+
+    // the size of each message log segment file
+    private int logSegmentBytes = 64 << 20;
+
+    // the number of latest messages kept in memory for history requests
+    private int recentMessages = 8192;
+
+    // the most offsets a history request goes back
+    private int historyLimit = 1000;
+
+    // whether the hot paths are measured
+    private boolean metricsEnabled;
+
+    // the local port of the stats endpoint, 0 for none
+    private int statsPort;
+
+    // how long a client may stay silent before it is disconnected, 0 to never reap
+    private long idleTimeoutMillis = 60000;
+
+    // how long the outbound queues may take to drain when the server stops
+    private long shutdownDrainMillis = 2000;
+
+    // whether the server stops once its last client leaves
+    private boolean stopWhenEmpty;
+
+    // the ID of this server in its cluster, null for host:port
+    private String nodeId;
+
+    // the host name or address other nodes reach this one at, null for the local address
+    private String clusterHost;
+
+    // the port other nodes connect to, 0 to run alone
+    private int clusterPort;
+
+    // the host:port cluster addresses of other nodes to join
+    private List<String> peers = Collections.emptyList();
+
+    // how long a client that lost its connection may resume its session, 0 to never resume
+    private long sessionGraceMillis = 30000;
+
+    // the messages per second each connection may send, 0 for no limit
+    private double userRate;
+
+    // the messages a connection may send at once above its rate
+    private int userBurst = 20;
+
+    // the chat messages per second each room may take, 0 for no limit
+    private double roomRate;
+
+    // the chat messages a room may take at once above its rate
+    private int roomBurst = 200;
+
+    // what happens to a message over a limit
+    private RateAction rateAction = RateAction.DROP;
+
+    // the frame size above which broadcasts are compressed for the clients that accept it, 0 to never compress
+    private int compressThreshold = 1024;
+
+    
+    /**
+     * Builds a configuration from the system properties, falling back to the defaults.
+     *
+     * @return the configuration
+     */
+    public static ServerConfig fromSystemProperties() {
+        
+        ServerConfig config = new ServerConfig();
+        String engine = System.getProperty(ENGINE_PROPERTY);
+        if (engine != null)
+            config.setEngine(Engine.valueOf(engine.trim().toUpperCase()));
+        config.setIoThreads(Integer.getInteger(IO_THREADS_PROPERTY, config.getIoThreads()));
+        String threadMode = System.getProperty(THREAD_MODE_PROPERTY);
+        if (threadMode != null)
+            config.setThreadMode(ThreadMode.valueOf(threadMode.trim().toUpperCase()));
+        config.setOutboundQueueSize(Integer.getInteger(QUEUE_SIZE_PROPERTY, config.getOutboundQueueSize()));
+        String overflow = System.getProperty(OVERFLOW_PROPERTY);
+        if (overflow != null)
+            config.setOverflowPolicy(OverflowPolicy.valueOf(overflow.trim().toUpperCase()));
+        config.setBlockTimeoutMillis(Long.getLong(BLOCK_TIMEOUT_PROPERTY, config.getBlockTimeoutMillis()));
+        config.setLogDir(System.getProperty(LOG_DIR_PROPERTY));
+        config.setLogSegmentBytes(Integer.getInteger(LOG_SEGMENT_BYTES_PROPERTY, config.getLogSegmentBytes()));
+        config.setRecentMessages(Integer.getInteger(RECENT_MESSAGES_PROPERTY, config.getRecentMessages()));
+        config.setHistoryLimit(Integer.getInteger(HISTORY_LIMIT_PROPERTY, config.getHistoryLimit()));
+        config.setStatsPort(Integer.getInteger(STATS_PORT_PROPERTY, config.getStatsPort()));
+        config.setMetricsEnabled(Boolean.getBoolean(METRICS_PROPERTY) || config.getStatsPort() > 0);
+        config.setIdleTimeoutMillis(Long.getLong(IDLE_TIMEOUT_PROPERTY, config.getIdleTimeoutMillis()));
+        config.setShutdownDrainMillis(Long.getLong(SHUTDOWN_DRAIN_PROPERTY, config.getShutdownDrainMillis()));
+        config.setStopWhenEmpty(Boolean.getBoolean(STOP_WHEN_EMPTY_PROPERTY));
+        config.setNodeId(System.getProperty(NODE_ID_PROPERTY));
+        config.setClusterHost(System.getProperty(CLUSTER_HOST_PROPERTY));
+        config.setClusterPort(Integer.getInteger(CLUSTER_PORT_PROPERTY, config.getClusterPort()));
+        String peers = System.getProperty(PEERS_PROPERTY);
+        if (peers != null) {
+            List<String> addresses = new ArrayList<String>();
+            for (String peer : peers.split(",")) {
+                if (!peer.trim().isEmpty()) addresses.add(peer.trim());
+            }
+            config.setPeers(addresses);
+        }
+        config.setSessionGraceMillis(Long.getLong(SESSION_GRACE_PROPERTY, config.getSessionGraceMillis()));
+        config.setUserRate(Double.parseDouble(System.getProperty(USER_RATE_PROPERTY, "0")));
+        config.setUserBurst(Integer.getInteger(USER_BURST_PROPERTY, config.getUserBurst()));
+        config.setRoomRate(Double.parseDouble(System.getProperty(ROOM_RATE_PROPERTY, "0")));
+        config.setRoomBurst(Integer.getInteger(ROOM_BURST_PROPERTY, config.getRoomBurst()));
+        String rateAction = System.getProperty(RATE_ACTION_PROPERTY);
+        if (rateAction != null)
+            config.setRateAction(RateAction.valueOf(rateAction.trim().toUpperCase()));
+        config.setCompressThreshold(Integer.getInteger(COMPRESS_THRESHOLD_PROPERTY, config.getCompressThreshold()));
+        return config;
+    }
+
+    
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    public void setOutboundQueueSize(int outboundQueueSize) {
+        this.outboundQueueSize = Math.max(1, outboundQueueSize);
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public void setLogDir(String logDir) {
+        this.logDir = logDir;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    public void setLogSegmentBytes(int logSegmentBytes) {
+        this.logSegmentBytes = logSegmentBytes;
+    }
+
+    public int getRecentMessages() {
+        return recentMessages;
+    }
+
+    public void setRecentMessages(int recentMessages) {
+        this.recentMessages = Math.max(2, recentMessages);
+    }
+
+    public int getHistoryLimit() {
+        return historyLimit;
+    }
+
+    public void setHistoryLimit(int historyLimit) {
+        this.historyLimit = Math.max(1, historyLimit);
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    public int getStatsPort() {
+        return statsPort;
+    }
+
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+    }
+
+    public long getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+
+    public void setShutdownDrainMillis(long shutdownDrainMillis) {
+        this.shutdownDrainMillis = Math.max(0, shutdownDrainMillis);
+    }
+
+    public boolean isStopWhenEmpty() {
+        return stopWhenEmpty;
+    }
+
+    public void setStopWhenEmpty(boolean stopWhenEmpty) {
+        this.stopWhenEmpty = stopWhenEmpty;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public String getClusterHost() {
+        return clusterHost;
+    }
+
+    public void setClusterHost(String clusterHost) {
+        this.clusterHost = clusterHost;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public void setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public void setPeers(List<String> peers) {
+        this.peers = peers;
+    }
+
+    public long getSessionGraceMillis() {
+        return sessionGraceMillis;
+    }
+
+    public void setSessionGraceMillis(long sessionGraceMillis) {
+        this.sessionGraceMillis = Math.max(0, sessionGraceMillis);
+    }
+
+    public double getUserRate() {
+        return userRate;
+    }
+
+    public void setUserRate(double userRate) {
+        this.userRate = Math.max(0, userRate);
+    }
+
+    public int getUserBurst() {
+        return userBurst;
+    }
+
+    public void setUserBurst(int userBurst) {
+        this.userBurst = Math.max(1, userBurst);
+    }
+
+    public double getRoomRate() {
+        return roomRate;
+    }
+
+    public void setRoomRate(double roomRate) {
+        this.roomRate = Math.max(0, roomRate);
+    }
+
+    public int getRoomBurst() {
+        return roomBurst;
+    }
+
+    public void setRoomBurst(int roomBurst) {
+        this.roomBurst = Math.max(1, roomBurst);
+    }
+
+    public RateAction getRateAction() {
+        return rateAction;
+    }
+
+    public void setRateAction(RateAction rateAction) {
+        this.rateAction = rateAction;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public void setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = Math.max(0, compressThreshold);
+    }
+}
@@ -0,0 +1,46 @@
+package com.chat.server;
+
+import com.chat.server.impl.NioServer;
+import com.chat.server.impl.Server;
+
+/**
+ * Creates the server implementation selected by the configuration.
+ */
+public final class ServerFactory {
+
+    
+    private ServerFactory() {
+    }
+
+    
+    /**
+     * Creates a server configured from the system properties.
+     *
+     * @param port the port number to listen for connections
+     * @return the server
+     */
+    public static ServerSvc create(int port) {
+        
+        return create(port, ServerConfig.fromSystemProperties());
+    }
+
+    
+    /**
+     * Creates a server for the given configuration.
+     *
+     * @param port   the port number to listen for connections
+     * @param config the server configuration
+     * @return the server
+     */
+    public static ServerSvc create(int port, ServerConfig config) {
+        
+        switch (config.getEngine()) {
+            
+            case NIO:
+                return new NioServer(port, config);
+                
+            default:
+                return new Server(port, config);
+        }
+    }
+}
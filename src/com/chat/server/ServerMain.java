@@ -0,0 +1,38 @@
+package com.chat.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a standalone chat server, without the Swing client.
+ * Usage: ServerMain [port], the engine is chosen with -Dchat.server.engine=blocking|nio
+ * Stopping the process (Ctrl-C, SIGTERM) shuts the server down gracefully.
+ */
+public class ServerMain {
+
+    public static void main(String[] args) {
+        
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final ServerConfig config = ServerConfig.fromSystemProperties();
+        final ServerSvc server = ServerFactory.create(port, config);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                if (stopped.getCount() == 0) return; // stopped on its own
+                server.shutdown(config.getShutdownDrainMillis());
+                try {
+                    stopped.await(config.getShutdownDrainMillis() + 1000, TimeUnit.MILLISECONDS);
+                } 
+                
+                catch (InterruptedException e) {
+                } // exiting anyway
+            }
+        }, "server-shutdown"));
+        
+        server.start();
+        stopped.countDown();
+    }
+}
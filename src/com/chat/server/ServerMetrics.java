@@ -0,0 +1,257 @@
+package com.chat.server;
+
+import com.chat.common.utils.LatencyHistogram;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and histograms of the server hot paths.
+ * Counters are LongAdders, striped so the readers, writers and event loops updating them
+ * never contend, and latencies go to lock-free histograms. A server without metrics
+ * holds no instance at all, so a disabled metric costs a null check. Rates are sampled
+ * at a fixed interval by their own thread, so reading a snapshot changes nothing.
+ */
+public class ServerMetrics {
+    
+    // how often the rates are sampled
+    private static final long SAMPLE_MILLIS = 1000;
+    
+    // when the metrics were created
+    private final long startMillis = System.currentTimeMillis();
+    
+    // the messages received from clients
+    private final LongAdder messagesIn = new LongAdder();
+    
+    // the frames written to client sockets
+    private final LongAdder messagesOut = new LongAdder();
+    
+    // the bytes written to client sockets
+    private final LongAdder bytesOut = new LongAdder();
+    
+    // the clients that connected and disconnected
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    
+    // the messages over a rate limit
+    private final LongAdder rateLimited = new LongAdder();
+    
+    // the broadcasts compressed, and the bytes they saved on the wire
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    
+    // the nanoseconds taken to hand a broadcast to every member of the room
+    private final LatencyHistogram fanOutNanos = new LatencyHistogram();
+    
+    // the nanoseconds taken to encode a broadcast
+    private final LatencyHistogram encodeNanos = new LatencyHistogram();
+    
+    // the messages per second over the last sample interval
+    private volatile long inPerSecond;
+    private volatile long outPerSecond;
+    
+    // the thread sampling the rates, null when not started
+    private Thread sampler;
+
+    
+    /**
+     * Starts sampling the rates, once per second.
+     */
+    public synchronized void start() {
+        
+        if (sampler != null) return;
+        sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                sample();
+            }
+        }, "metrics-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    
+    /**
+     * Stops sampling the rates.
+     */
+    public synchronized void stop() {
+        
+        if (sampler != null) sampler.interrupt();
+        sampler = null;
+    }
+
+    
+    private void sample() {
+        
+        long lastNanos = System.nanoTime();
+        long lastIn = messagesIn.sum();
+        long lastOut = messagesOut.sum();
+        
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } 
+            
+            catch (InterruptedException e) {
+                return;
+            }
+            
+            long now = System.nanoTime();
+            long in = messagesIn.sum();
+            long out = messagesOut.sum();
+            double seconds = Math.max(1, now - lastNanos) / 1e9;
+            inPerSecond = Math.round((in - lastIn) / seconds);
+            outPerSecond = Math.round((out - lastOut) / seconds);
+            lastNanos = now;
+            lastIn = in;
+            lastOut = out;
+        }
+    }
+
+    
+    /**
+     * Counts a message received from a client.
+     */
+    public void messageIn() {
+        
+        messagesIn.increment();
+    }
+
+    
+    /**
+     * Counts frames written to a client socket.
+     *
+     * @param frames the number of frames
+     * @param bytes  their size in bytes
+     */
+    public void written(int frames, long bytes) {
+        
+        messagesOut.add(frames);
+        bytesOut.add(bytes);
+    }
+
+    
+    /**
+     * Counts a client that connected.
+     */
+    public void connected() {
+        
+        connects.increment();
+    }
+
+    
+    /**
+     * Counts a client that disconnected.
+     */
+    public void disconnected() {
+        
+        disconnects.increment();
+    }
+
+    
+    /**
+     * Counts a message over a rate limit, whether it was dropped, delayed or cost its sender the connection.
+     */
+    public void rateLimited() {
+        
+        rateLimited.increment();
+    }
+
+    
+    /**
+     * Counts a broadcast compressed for the clients that accept it.
+     *
+     * @param saved the bytes saved over all of them
+     */
+    public void compressed(long saved) {
+        
+        compressed.increment();
+        bytesSaved.add(saved);
+    }
+
+    
+    /**
+     * Records the time taken to hand a broadcast to the members of a room.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void fanOut(long nanos) {
+        
+        fanOutNanos.record(nanos);
+    }
+
+    
+    /**
+     * Records the time taken to encode a broadcast.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void encoded(long nanos) {
+        
+        encodeNanos.record(nanos);
+    }
+
+    
+    /**
+     * Builds a JSON snapshot of the metrics. Rates are per second over the last sample interval.
+     *
+     * @param clients the connected clients, to report their queue depths
+     * @return the snapshot
+     */
+    public String toJson(Collection<ClientConnection> clients) {
+        
+        int connected = 0;
+        long queued = 0;
+        int maxQueued = 0;
+        for (ClientConnection client : clients) {
+            int depth = client.getQueueDepth();
+            connected++;
+            queued += depth;
+            maxQueued = Math.max(maxQueued, depth);
+        }
+
+        StringBuilder json = new StringBuilder(512);
+        json.append('{');
+        json.append("\"uptimeMillis\":").append(System.currentTimeMillis() - startMillis);
+        json.append(",\"connectedClients\":").append(connected);
+        json.append(",\"connects\":").append(connects.sum());
+        json.append(",\"disconnects\":").append(disconnects.sum());
+        json.append(",\"rateLimited\":").append(rateLimited.sum());
+        json.append(",\"messagesIn\":").append(messagesIn.sum());
+        json.append(",\"messagesOut\":").append(messagesOut.sum());
+        json.append(",\"messagesInPerSecond\":").append(inPerSecond);
+        json.append(",\"messagesOutPerSecond\":").append(outPerSecond);
+        json.append(",\"bytesOut\":").append(bytesOut.sum());
+        json.append(",\"compressed\":{\"count\":").append(compressed.sum())
+                .append(",\"bytesSaved\":").append(bytesSaved.sum()).append('}');
+        json.append(",\"queueDepth\":{\"total\":").append(queued).append(",\"max\":").append(maxQueued).append('}');
+        json.append(",\"fanOutMicros\":");
+        appendHistogram(json, fanOutNanos);
+        json.append(",\"encodeMicros\":");
+        appendHistogram(json, encodeNanos);
+        json.append('}');
+        return json.toString();
+    }
+
+    
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        
+        json.append("{\"count\":").append(histogram.getCount());
+        json.append(",\"mean\":").append(micros((long) histogram.getMean()));
+        json.append(",\"p50\":").append(micros(histogram.getValueAtPercentile(50)));
+        json.append(",\"p99\":").append(micros(histogram.getValueAtPercentile(99)));
+        json.append(",\"p999\":").append(micros(histogram.getValueAtPercentile(99.9)));
+        json.append(",\"max\":").append(micros(histogram.getMax()));
+        json.append('}');
+    }
+
+    
+    private static String micros(long nanos) {
+        
+        // the root locale keeps the decimal point a point, as JSON wants it
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+}
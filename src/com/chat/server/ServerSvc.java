@@ -10,7 +10,16 @@ public interface ServerSvc {
     void start();
 
     /**
-     * Stops the server.
+     * Stops the server gracefully, waiting for the outbound queues as long as configured.
      */
     void stop();
+
+    /**
+     * Stops the server gracefully: it stops accepting connections, sends every client
+     * a SHUTDOWN notice, gives their outbound queues until the deadline to drain, then
+     * closes them. The call returns at once; start() returns once the server is down.
+     *
+     * @param drainMillis how long the outbound queues may take to drain
+     */
+    void shutdown(long drainMillis);
 }
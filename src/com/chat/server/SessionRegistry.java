@@ -0,0 +1,242 @@
+package com.chat.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sessions of the connected clients, and of the clients that lost their connection
+ * recently enough to resume. A client reconnecting with the token of its session gets
+ * its rooms back and learns the last message it sent that the server handled, so it
+ * can send the rest again. Expired sessions are swept while clients come and go, there
+ * is no timer thread.
+ */
+public class SessionRegistry {
+    
+    // the source of the tokens, a token is all it takes to take over a session so it must not be guessable
+    private static final SecureRandom TOKENS = new SecureRandom();
+    
+    /**
+     * The state a client keeps across its connections.
+     */
+    public static class Session {
+        
+        // the token the client resumes the session with
+        private final long token;
+        
+        // the user of the session
+        private final String username;
+        
+        // the connection the session is attached to, 0 while detached
+        private volatile int clientId;
+        
+        // the connection the session was taken from when it was resumed, 0 if none
+        private volatile int previousClientId;
+        
+        // whether the session was resumed rather than started by its connection
+        private volatile boolean resumed;
+        
+        // the last message sequence handled
+        private volatile long lastSeq;
+        
+        // the sequenced messages handled since the last ACK
+        private volatile int unacked;
+        
+        // the rooms of the session when it was detached
+        private volatile List<String> rooms = Collections.emptyList();
+        
+        // when the session was detached
+        private volatile long detachedAt;
+        
+        private Session(long token, String username, int clientId) {
+            
+            this.token = token;
+            this.username = username;
+            this.clientId = clientId;
+        }
+        
+        public long getToken() {
+            return token;
+        }
+        
+        public boolean isResumed() {
+            return resumed;
+        }
+        
+        public int getPreviousClientId() {
+            return previousClientId;
+        }
+        
+        public long getLastSeq() {
+            return lastSeq;
+        }
+        
+        public List<String> getRooms() {
+            return rooms;
+        }
+        
+        public void setRooms(Collection<String> rooms) {
+            this.rooms = new ArrayList<String>(rooms);
+        }
+        
+        /**
+         * Records a sequenced message from the client, unless it was handled already.
+         * Only the reader of the attached connection calls this.
+         *
+         * @param seq the sequence of the message
+         * @return false if the message is a copy of one already handled
+         */
+        public boolean handled(long seq) {
+            
+            if (seq <= lastSeq) return false;
+            lastSeq = seq;
+            unacked++;
+            return true;
+        }
+        
+        /**
+         * Tells whether an ACK is due, and resets the count if it is.
+         *
+         * @param interval the sequenced messages between ACKs
+         * @return true if the client should be sent an ACK now
+         */
+        public boolean ackDue(int interval) {
+            
+            if (unacked < interval) return false;
+            unacked = 0;
+            return true;
+        }
+    }
+    
+    // the sessions by token, attached or not
+    private final ConcurrentHashMap<Long, Session> byToken = new ConcurrentHashMap<Long, Session>();
+    
+    // the attached sessions by connection ID
+    private final ConcurrentHashMap<Integer, Session> byClient = new ConcurrentHashMap<Integer, Session>();
+    
+    // how long a detached session may be resumed, 0 to never resume
+    private final long graceMillis;
+    
+    // when the expired sessions were last swept
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    
+    /**
+     * Constructs an empty registry.
+     *
+     * @param graceMillis how long a detached session may be resumed, 0 to never resume
+     */
+    public SessionRegistry(long graceMillis) {
+        
+        this.graceMillis = graceMillis;
+    }
+
+    
+    /**
+     * Attaches a connection to the session it asks for, or to a new one.
+     * The session is only resumed for the same user and within the grace period;
+     * when its previous connection is still attached, the session is taken from it.
+     *
+     * @param token    the token sent by the client, 0 for a new session
+     * @param username the user of the connection
+     * @param clientId the connection ID
+     * @return the session
+     */
+    public Session open(long token, String username, int clientId) {
+        
+        Session session = token != 0 && graceMillis > 0 ? byToken.get(token) : null;
+        
+        if (session != null && session.username.equals(username)) {
+            synchronized (session) {
+                int previous = session.clientId;
+                if (previous != 0 || System.currentTimeMillis() - session.detachedAt <= graceMillis) {
+                    if (previous != 0) byClient.remove(previous, session);
+                    session.previousClientId = previous;
+                    session.clientId = clientId;
+                    session.resumed = true;
+                    byClient.put(clientId, session);
+                    return session;
+                }
+            }
+        }
+        
+        while (true) {
+            long created = TOKENS.nextLong();
+            if (created == 0) continue;
+            session = new Session(created, username, clientId);
+            if (byToken.putIfAbsent(created, session) == null) break;
+        }
+        byClient.put(clientId, session);
+        return session;
+    }
+
+    
+    /**
+     * Returns the session a connection is attached to.
+     *
+     * @param clientId the connection ID
+     * @return the session, null if none
+     */
+    public Session get(int clientId) {
+        
+        return byClient.get(clientId);
+    }
+
+    
+    /**
+     * Detaches a connection that was lost, keeping its session for the grace period.
+     *
+     * @param clientId the connection ID
+     * @param rooms    the rooms of the connection
+     */
+    public void detach(int clientId, Collection<String> rooms) {
+        
+        Session session = byClient.remove(clientId);
+        if (session != null) {
+            synchronized (session) {
+                if (session.clientId == clientId) {
+                    session.setRooms(rooms);
+                    session.detachedAt = System.currentTimeMillis();
+                    session.clientId = 0;
+                }
+            }
+            if (graceMillis == 0) byToken.remove(session.token, session);
+        }
+        sweep();
+    }
+
+    
+    /**
+     * Ends the session of a connection that signed out.
+     *
+     * @param clientId the connection ID
+     */
+    public void end(int clientId) {
+        
+        Session session = byClient.remove(clientId);
+        if (session != null) byToken.remove(session.token, session);
+    }
+
+    
+    /**
+     * Drops the detached sessions past the grace period, at most a few times per period.
+     */
+    private void sweep() {
+        
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < graceMillis / 4 || !lastSweep.compareAndSet(last, now)) return;
+        
+        for (Iterator<Session> it = byToken.values().iterator(); it.hasNext(); ) {
+            Session session = it.next();
+            synchronized (session) {
+                if (session.clientId == 0 && now - session.detachedAt > graceMillis) it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.chat.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+
+/**
+ * A small HTTP endpoint serving the server metrics as JSON on http://localhost:port/stats.
+ * It only listens on the loopback interface.
+ */
+public class StatsEndpoint {
+    
+    // the HTTP server of the endpoint
+    private final HttpServer http;
+
+    
+    /**
+     * Starts the endpoint.
+     *
+     * @param port    the local port to listen on
+     * @param metrics the metrics to serve
+     * @param clients the connected clients
+     * @throws IOException if the port cannot be bound
+     */
+    public StatsEndpoint(int port, final ServerMetrics metrics, final Collection<ClientConnection> clients) throws IOException {
+        
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                
+                byte[] body = metrics.toJson(clients).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        http.start();
+    }
+
+    
+    /**
+     * Stops the endpoint.
+     */
+    public void stop() {
+        
+        http.stop(0);
+    }
+}
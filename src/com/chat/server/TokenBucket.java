@@ -0,0 +1,81 @@
+package com.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp: the time at which the bucket is full again.
+ * Taking a token pushes that time one refill interval later, and is refused when it would
+ * run further ahead of now than the whole capacity. Tokens come back with the passing of
+ * time alone, so no thread refills the bucket, and one compare-and-set takes a token.
+ */
+public class TokenBucket {
+    
+    // the nanoseconds one token takes to come back
+    private final long intervalNanos;
+    
+    // the nanoseconds a full bucket takes to come back from empty
+    private final long capacityNanos;
+    
+    // when the bucket is full again, in System.nanoTime() terms
+    private final AtomicLong fullAt;
+
+    
+    /**
+     * Constructs a full bucket.
+     *
+     * @param perSecond the tokens coming back per second
+     * @param burst     the tokens a full bucket holds
+     */
+    public TokenBucket(double perSecond, int burst) {
+        
+        this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+        this.capacityNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    
+    /**
+     * Takes a token if there is one.
+     *
+     * @param now the current System.nanoTime()
+     * @return 0 if a token was taken, else how many nanoseconds until one comes back
+     */
+    public long tryAcquire(long now) {
+        
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + intervalNanos;
+            long excess = next - now - capacityNanos;
+            if (excess > 0) return excess;
+            if (fullAt.compareAndSet(full, next)) return 0;
+        }
+    }
+
+    
+    /**
+     * Takes a token, borrowing it from the future if there is none left.
+     *
+     * @param now the current System.nanoTime()
+     * @return how many nanoseconds to wait before the token may be used, 0 for none
+     */
+    public long reserve(long now) {
+        
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + intervalNanos;
+            if (fullAt.compareAndSet(full, next)) return Math.max(0, next - now - capacityNanos);
+        }
+    }
+
+    
+    /**
+     * Tells whether the bucket is full, so that dropping it loses nothing.
+     *
+     * @param now the current System.nanoTime()
+     * @return true if no token is missing
+     */
+    public boolean isFull(long now) {
+        
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,539 @@
+package com.chat.server.cluster;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.Handshake;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.log.AsyncLog;
+import com.chat.common.utils.Type;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One server of a cluster, linked to every other one.
+ * Nodes find each other from a list of seed addresses: each link starts with the
+ * members known at both ends, so every node ends up dialing every other one. Room
+ * messages are relayed once to each peer with a cluster-wide ID and dropped if seen
+ * twice; joins and leaves are relayed too, so each node knows who is where.
+ */
+public class ClusterNode {
+    
+    // how often the dialer retries the members it has no link to
+    private static final long DIAL_INTERVAL_MILLIS = 2000;
+    
+    // how long a peer may take to connect and answer the handshake
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    
+    /**
+     * The server a node delivers the traffic of its peers to.
+     */
+    public interface Host {
+        
+        /**
+         * Delivers a room message or notice sent on another node.
+         *
+         * @param message the message, with the ID and timestamp given by its node
+         */
+        void deliver(Message message);
+        
+        /**
+         * Delivers a direct message sent on another node to a local user.
+         *
+         * @param message the message
+         */
+        void deliverDirect(Message message);
+        
+        /**
+         * Lists a JOIN message for each local user and each of its rooms.
+         *
+         * @param into the list to add the messages to
+         */
+        void presence(List<Message> into);
+    }
+    
+    // the ID of this node, unique in the cluster
+    private final String nodeId;
+    
+    // the address peers reach this node at, host:port
+    private final String address;
+    
+    // the port peers connect to
+    private final int port;
+    
+    // the server messages from peers are delivered to
+    private final Host host;
+    
+    // the high bits of the IDs given by this node, drawn at random on each start so that
+    // a restarted node never repeats the IDs its peers remember from before
+    private final long idPrefix;
+    
+    // the low bits of the next ID given by this node
+    private final AtomicInteger sequence = new AtomicInteger();
+    
+    // the addresses of the members, dialed until a link to them is up
+    private final Set<String> members = ConcurrentHashMap.<String>newKeySet();
+    
+    // the open link to each peer, by node ID
+    private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+    
+    // the rooms of each remote user, by node ID then username
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> rosters =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>>();
+    
+    // the IDs of the latest messages from peers
+    private final SeenIds seen = new SeenIds();
+    
+    // the socket peers connect to
+    private volatile ServerSocket serverSocket;
+    
+    // turned off when the node stops
+    private volatile boolean running;
+
+    
+    /**
+     * Constructs a node, not linked yet.
+     *
+     * @param nodeId the ID of this node, unique in the cluster
+     * @param host   the host name or address peers reach this node at
+     * @param port   the port peers connect to
+     * @param seeds  the addresses of other members, host:port, this node's own may be among them
+     * @param server the server to deliver messages from peers to
+     */
+    public ClusterNode(String nodeId, String host, int port, Collection<String> seeds, Host server) {
+        
+        this.nodeId = nodeId;
+        this.address = host + ":" + port;
+        this.port = port;
+        this.host = server;
+        this.idPrefix = (long) ThreadLocalRandom.current().nextInt() << 32;
+        for (String seed : seeds) {
+            if (!seed.isEmpty() && !seed.equals(address)) members.add(seed);
+        }
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    
+    /**
+     * Opens the cluster port and starts linking to the other members.
+     *
+     * @throws IOException if the cluster port cannot be opened
+     */
+    public void start() throws IOException {
+        
+        serverSocket = new ServerSocket(port);
+        running = true;
+        
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                accept();
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        
+        Thread dialer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                dial();
+            }
+        }, "cluster-dialer");
+        dialer.setDaemon(true);
+        dialer.start();
+        
+        AsyncLog.info("ClusterNode", "Node " + nodeId + " listening for peers on " + address);
+    }
+
+    
+    /**
+     * Closes the cluster port and every link.
+     */
+    public void stop() {
+        
+        running = false;
+        
+        try {
+            ServerSocket socket = serverSocket;
+            if (socket != null) socket.close();
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+        
+        for (PeerLink link : links.values()) link.close();
+    }
+
+    
+    /**
+     * Gives a message a new ID, unique in the cluster.
+     *
+     * @return the ID
+     */
+    public long nextId() {
+        
+        return idPrefix | (sequence.incrementAndGet() & 0xFFFFFFFFL);
+    }
+
+    
+    /**
+     * Relays a room message or notice to every peer.
+     *
+     * @param frame the encoded message, shared read-only
+     */
+    public void relay(ByteBuffer frame) {
+        
+        for (PeerLink link : links.values()) link.send(frame);
+    }
+
+    
+    /**
+     * Tells the peers a local user joined a room.
+     *
+     * @param username the user
+     * @param room     the room
+     */
+    public void userJoined(String username, String room) {
+        
+        relay(MessageEncoder.encode(presence(Type.JOIN, username, room)));
+    }
+
+    
+    /**
+     * Tells the peers a local user left a room.
+     *
+     * @param username the user
+     * @param room     the room
+     */
+    public void userLeft(String username, String room) {
+        
+        relay(MessageEncoder.encode(presence(Type.LEAVE, username, room)));
+    }
+
+    
+    /**
+     * Tells the peers a local user signed out.
+     *
+     * @param username the user
+     */
+    public void userGone(String username) {
+        
+        relay(MessageEncoder.encode(presence(Type.SIGNOUT, username, null)));
+    }
+
+    
+    /**
+     * Sends a direct message to the node its recipient is connected to.
+     *
+     * @param recipient the username of the recipient
+     * @param frame     the encoded message
+     * @return false if no peer has this user
+     */
+    public boolean sendDirect(String recipient, ByteBuffer frame) {
+        
+        for (Map.Entry<String, ConcurrentHashMap<String, Set<String>>> roster : rosters.entrySet()) {
+            if (!roster.getValue().containsKey(recipient)) continue;
+            PeerLink link = links.get(roster.getKey());
+            if (link == null) continue;
+            link.send(frame);
+            return true;
+        }
+        return false;
+    }
+
+    
+    /**
+     * Lists the remote users in a room.
+     *
+     * @param room the room
+     * @return each user as "username (node)"
+     */
+    public List<String> roster(String room) {
+        
+        List<String> users = new ArrayList<String>();
+        for (Map.Entry<String, ConcurrentHashMap<String, Set<String>>> roster : rosters.entrySet()) {
+            for (Map.Entry<String, Set<String>> user : roster.getValue().entrySet()) {
+                if (user.getValue().contains(room)) users.add(user.getKey() + " (" + roster.getKey() + ")");
+            }
+        }
+        return users;
+    }
+
+    
+    /**
+     * Handles a message from a peer.
+     *
+     * @param link    the link it came on
+     * @param message the message
+     */
+    void received(PeerLink link, Message message) {
+        
+        switch (message.getType()) {
+            case NODES:
+                learn(link, message.getMsg());
+                break;
+            case JOIN:
+                rooms(link.peerId, message.getUsername()).add(message.getRoom());
+                break;
+            case LEAVE:
+                rooms(link.peerId, message.getUsername()).remove(message.getRoom());
+                break;
+            case SIGNOUT:
+                rosterOf(link.peerId).remove(message.getUsername());
+                break;
+            case MSG:
+            case INFO:
+                if (seen.add(message.getId())) host.deliver(message);
+                break;
+            case DIRECT:
+                if (seen.add(message.getId())) host.deliverDirect(message);
+                break;
+            default:
+                AsyncLog.warn("ClusterNode", "Unexpected " + message.getType() + " from node " + link.peerId, null);
+        }
+    }
+
+    
+    /**
+     * Forgets a link once it is closed, and the users of its node with it.
+     *
+     * @param link the closed link
+     */
+    void closed(PeerLink link) {
+        
+        if (!links.remove(link.peerId, link)) return;
+        rosters.remove(link.peerId);
+        if (running) AsyncLog.info("ClusterNode", "Lost the link to node " + link.peerId);
+    }
+    
+    private void accept() {
+        
+        while (running) {
+            
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread handshake = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        
+                        open(socket, false, null);
+                    }
+                }, "cluster-handshake");
+                handshake.setDaemon(true);
+                handshake.start();
+            } 
+            
+            catch (SocketException e) {
+                if (running) AsyncLog.warn("ClusterNode", "Exception accepting peers", e);
+                return;
+            } 
+            
+            catch (IOException e) {
+                AsyncLog.warn("ClusterNode", "Exception accepting peers", e);
+            }
+        }
+    }
+    
+    private void dial() {
+        
+        while (running) {
+            for (String member : members) {
+                if (!running) return;
+                if (isLinked(member)) continue;
+                
+                try {
+                    Socket socket = new Socket();
+                    int colon = member.lastIndexOf(':');
+                    socket.connect(new InetSocketAddress(member.substring(0, colon),
+                            Integer.parseInt(member.substring(colon + 1))), CONNECT_TIMEOUT_MILLIS);
+                    open(socket, true, member);
+                } 
+                
+                catch (IOException e) {
+                    AsyncLog.debug("ClusterNode", "Cannot reach " + member + ": " + e.getMessage());
+                } 
+                
+                catch (RuntimeException e) {
+                    AsyncLog.debug("ClusterNode", "Cannot reach " + member + ": " + e.getMessage());
+                }
+            }
+            
+            try {
+                Thread.sleep(DIAL_INTERVAL_MILLIS);
+            } 
+            
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private boolean isLinked(String member) {
+        
+        for (PeerLink link : links.values()) {
+            if (member.equals(link.address) && link.isOpen()) return true;
+        }
+        return false;
+    }
+
+    
+    /**
+     * Exchanges handshakes on a new socket and registers the link if it is wanted.
+     *
+     * @param socket  the connected socket
+     * @param dialed  true if this node opened it
+     * @param address the address dialed, null for an accepted socket
+     */
+    private void open(Socket socket, boolean dialed, String address) {
+        
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            Frames.writeFrame(out, new Handshake(nodeId).encode());
+            String peerId = Handshake.read(in).getUsername();
+            socket.setSoTimeout(0);
+            
+            if (peerId.equals(nodeId)) {
+                // one of the seeds is this node under another name
+                if (address != null) members.remove(address);
+                socket.close();
+                return;
+            }
+            register(new PeerLink(this, peerId, dialed, address, socket, in));
+        } 
+        
+        catch (IOException e) {
+            AsyncLog.debug("ClusterNode", "Handshake failed with " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            
+            try {
+                socket.close();
+            } 
+            
+            catch (IOException ignored) {
+            } // not much else I can do
+        }
+    }
+
+    
+    /**
+     * Keeps a new link, or closes it if the peer already has one.
+     * When two nodes dial each other at once, both keep the link dialed by the
+     * smaller ID, so exactly one survives.
+     *
+     * @param link the new link
+     */
+    private synchronized void register(PeerLink link) {
+        
+        PeerLink existing = links.get(link.peerId);
+        if (existing != null && existing.isOpen()
+                && (!isPreferred(link) || isPreferred(existing))) {
+            if (link.address != null && existing.address == null) existing.address = link.address;
+            link.close();
+            return;
+        }
+        
+        links.put(link.peerId, link);
+        if (existing != null) existing.close();
+        link.start();
+        AsyncLog.info("ClusterNode", "Linked to node " + link.peerId);
+        
+        // tell the peer who else is in the cluster and who is on this node
+        StringBuilder known = new StringBuilder(nodeId).append('@').append(address);
+        for (PeerLink other : links.values()) {
+            if (other.address != null) known.append(',').append(other.peerId).append('@').append(other.address);
+        }
+        link.send(MessageEncoder.encode(new Message(known.toString(), Type.NODES)));
+        
+        List<Message> presence = new ArrayList<Message>();
+        host.presence(presence);
+        for (Message join : presence) link.send(MessageEncoder.encode(join));
+    }
+    
+    private boolean isPreferred(PeerLink link) {
+        
+        return link.dialed == (nodeId.compareTo(link.peerId) < 0);
+    }
+
+    
+    /**
+     * Adds the members listed by a peer, each as id@host:port.
+     *
+     * @param link    the link the list came on
+     * @param entries the list
+     */
+    private void learn(PeerLink link, String entries) {
+        
+        for (String entry : entries.split(",")) {
+            int at = entry.indexOf('@');
+            if (at < 0) continue;
+            String id = entry.substring(0, at);
+            String member = entry.substring(at + 1);
+            if (id.equals(nodeId)) continue;
+            if (id.equals(link.peerId) && link.address == null) link.address = member;
+            if (!links.containsKey(id)) members.add(member);
+        }
+    }
+
+    
+    /**
+     * Builds a presence change to relay to the peers.
+     *
+     * @param type     JOIN, LEAVE or SIGNOUT
+     * @param username the user
+     * @param room     the room, null for a sign-out
+     * @return the message
+     */
+    public static Message presence(Type type, String username, String room) {
+        
+        Message message = new Message("", type);
+        message.setUsername(username);
+        message.setRoom(room);
+        return message;
+    }
+    
+    private ConcurrentHashMap<String, Set<String>> rosterOf(String peerId) {
+        
+        ConcurrentHashMap<String, Set<String>> roster = rosters.get(peerId);
+        if (roster == null) {
+            ConcurrentHashMap<String, Set<String>> created = new ConcurrentHashMap<String, Set<String>>();
+            roster = rosters.putIfAbsent(peerId, created);
+            if (roster == null) roster = created;
+        }
+        return roster;
+    }
+    
+    private Set<String> rooms(String peerId, String username) {
+        
+        ConcurrentHashMap<String, Set<String>> roster = rosterOf(peerId);
+        Set<String> rooms = roster.get(username);
+        if (rooms == null) {
+            Set<String> created = ConcurrentHashMap.<String>newKeySet();
+            rooms = roster.putIfAbsent(username, created);
+            if (rooms == null) rooms = created;
+        }
+        return rooms;
+    }
+}
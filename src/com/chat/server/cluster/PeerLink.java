@@ -0,0 +1,200 @@
+package com.chat.server.cluster;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.MessageDecoder;
+import com.chat.common.log.AsyncLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A persistent connection to another node of the cluster.
+ * Frames are queued by any thread and written by the link's writer thread, a batch per
+ * flush, like the client writer tasks; the reader thread hands each message to the node.
+ */
+class PeerLink {
+    
+    // the frames that may wait for the peer before new ones are dropped
+    private static final int QUEUE_SIZE = 65536;
+    
+    // the node this link belongs to
+    private final ClusterNode node;
+    
+    // the ID of the node at the other end
+    final String peerId;
+    
+    // true if this node opened the link, false if the peer did
+    final boolean dialed;
+    
+    // the cluster address of the peer, host:port, null until it is known
+    volatile String address;
+    
+    // the socket and its streams
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    
+    // a channel view of the output stream, writing shared frames without copying them first
+    private final WritableByteChannel outputChannel;
+    
+    // the frames waiting to be written
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_SIZE);
+    
+    // the thread writing the queued frames
+    private volatile Thread writer;
+    
+    // turned on once the link is closed
+    private volatile boolean isClosed;
+
+    
+    /**
+     * Wraps a socket whose handshake is done.
+     *
+     * @param node    the local node
+     * @param peerId  the ID of the peer
+     * @param dialed  true if this node opened the link
+     * @param address the cluster address of the peer, if known
+     * @param socket  the connected socket
+     * @param in      the input stream the handshake was read from
+     * @throws IOException if the output stream cannot be opened
+     */
+    PeerLink(ClusterNode node, String peerId, boolean dialed, String address, Socket socket, DataInputStream in) throws IOException {
+        
+        this.node = node;
+        this.peerId = peerId;
+        this.dialed = dialed;
+        this.address = address;
+        this.socket = socket;
+        this.in = in;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.outputChannel = Channels.newChannel(out);
+    }
+
+    
+    /**
+     * Starts the reader and the writer threads of the link.
+     */
+    void start() {
+        
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                drain();
+            }
+        }, "peer-writer-" + peerId);
+        writer.setDaemon(true);
+        writer.start();
+        
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                read();
+            }
+        }, "peer-reader-" + peerId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    
+    /**
+     * Queues a frame for the peer. A peer too far behind loses the link rather than some
+     * frames, the dialer reconnects and the peers exchange their presence again.
+     *
+     * @param frame the frame, shared read-only
+     */
+    void send(ByteBuffer frame) {
+        
+        if (isClosed) return;
+        if (!queue.offer(frame.duplicate())) {
+            AsyncLog.warn("PeerLink", "Closing the link to node " + peerId + ", the link is not keeping up", null);
+            close();
+        }
+    }
+    
+    private void drain() {
+        
+        try {
+            while (!isClosed) {
+                ByteBuffer frame = queue.take();
+                do {
+                    while (frame.hasRemaining()) outputChannel.write(frame);
+                    frame = queue.poll();
+                } while (frame != null);
+                out.flush();
+            }
+        } 
+        
+        catch (InterruptedException e) {
+            // closed while waiting for frames
+        } 
+        
+        catch (IOException e) {
+            if (!isClosed) AsyncLog.warn("PeerLink", "Exception writing to node " + peerId, e);
+        }
+        close();
+    }
+    
+    private void read() {
+        
+        try {
+            while (!isClosed) {
+                Message message = MessageDecoder.read(in);
+                node.received(this, message);
+            }
+        } 
+        
+        catch (EOFException e) {
+            // the peer closed the link
+        } 
+        
+        catch (IOException e) {
+            if (!isClosed) AsyncLog.warn("PeerLink", "Exception reading from node " + peerId, e);
+        }
+        close();
+    }
+
+    
+    /**
+     * Tells whether the link is still open.
+     *
+     * @return true if it is
+     */
+    boolean isOpen() {
+        
+        return !isClosed;
+    }
+
+    
+    /**
+     * Closes the link and tells the node, once.
+     */
+    void close() {
+        
+        synchronized (this) {
+            if (isClosed) return;
+            isClosed = true;
+        }
+        queue.clear();
+        if (writer != null && writer != Thread.currentThread()) writer.interrupt();
+        
+        try {
+            socket.close();
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+        
+        node.closed(this);
+    }
+}
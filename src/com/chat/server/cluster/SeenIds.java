@@ -0,0 +1,41 @@
+package com.chat.server.cluster;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The IDs of the latest messages received from peers, to drop the copies
+ * that reach a node twice. Only the last CAPACITY IDs are remembered: the oldest
+ * one is forgotten each time a new one comes in.
+ */
+class SeenIds {
+    
+    // the number of IDs remembered, a power of two
+    private static final int CAPACITY = 1 << 16;
+    
+    // the IDs remembered
+    private final ConcurrentHashMap<Long, Boolean> ids = new ConcurrentHashMap<Long, Boolean>(CAPACITY * 2);
+    
+    // the IDs in arrival order, to forget the oldest
+    private final AtomicLongArray order = new AtomicLongArray(CAPACITY);
+    
+    // where the next ID goes in the arrival order
+    private final AtomicInteger next = new AtomicInteger();
+
+    
+    /**
+     * Remembers an ID.
+     *
+     * @param id the message ID
+     * @return false if the ID was already seen
+     */
+    boolean add(long id) {
+        
+        if (ids.putIfAbsent(id, Boolean.TRUE) != null) return false;
+        
+        long forgotten = order.getAndSet(next.getAndIncrement() & (CAPACITY - 1), id);
+        if (forgotten != 0) ids.remove(forgotten);
+        return true;
+    }
+}
@@ -0,0 +1,240 @@
+package com.chat.server.impl;
+
+import com.chat.common.data.Message;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A selector thread serving the reads and writes of many non-blocking connections.
+ * Other threads never touch the selector directly, they hand tasks to the loop instead.
+ */
+class EventLoop extends Thread {
+    
+    // the selector the connections of this loop are registered with
+    private final Selector selector;
+    
+    // the work submitted by other threads
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    
+    // the work due later, by deadline, only touched by the loop thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    
+    // The server this loop works for
+    private final NioServer server;
+    
+    // turned off to stop the loop
+    private volatile boolean running = true;
+
+    
+    /**
+     * Constructs an event loop.
+     *
+     * @param server the server this loop works for
+     * @param index  the index of the loop, used in the thread name
+     * @throws IOException if the selector cannot be opened
+     */
+    EventLoop(NioServer server, int index) throws IOException {
+        
+        super("nio-loop-" + index);
+        this.server = server;
+        this.selector = Selector.open();
+        setDaemon(true);
+    }
+
+    
+    /**
+     * Hands an accepted channel to this loop.
+     *
+     * @param channel the channel to serve
+     */
+    void register(final SocketChannel channel) {
+        
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(channel, key, EventLoop.this, server);
+                    key.attach(connection);
+                    connection.awaitHandshake();
+                } 
+                
+                catch (IOException e) {
+                    server.display(new Message(e, "Exception registering a new connection"));
+                    try {
+                        channel.close();
+                    } 
+                    
+                    catch (IOException e1) {
+                    } // not much else I can do
+                }
+            }
+        });
+    }
+
+    
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    
+    /**
+     * Runs a task on the loop thread once a delay has passed. Called on the loop thread only.
+     *
+     * @param task       the task to run
+     * @param delayNanos the delay in nanoseconds
+     */
+    void schedule(Runnable task, long delayNanos) {
+        
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    
+    /**
+     * Tells whether the calling thread is this loop.
+     *
+     * @return true when called from the loop thread
+     */
+    boolean inLoop() {
+        
+        return Thread.currentThread() == this;
+    }
+
+    
+    /**
+     * Stops the loop and closes every connection it serves.
+     */
+    void shutdown() {
+        
+        running = false;
+        selector.wakeup();
+    }
+
+    
+    /**
+     * The main execution logic of the loop.
+     */
+    public void run() {
+        
+        while (running) {
+            
+            try {
+                Timer next = timers.peek();
+                if (next == null) selector.select();
+                else {
+                    long millis = (next.deadline - System.nanoTime() + 999999) / 1000000;
+                    if (millis > 0) selector.select(millis);
+                    else selector.selectNow();
+                }
+            } 
+            
+            catch (IOException e) {
+                server.display(new Message(e, "Exception selecting on " + getName()));
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) runTask(task);
+            
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline - now <= 0) runTask(timers.poll().task);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                
+                try {
+                    if (key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                } 
+                
+                catch (CancelledKeyException e) {
+                    connection.closed();
+                } 
+                
+                catch (RuntimeException e) {
+                    server.display(new Message(e, "Exception serving " + connection.getUsername() + " on " + getName()));
+                    connection.closed();
+                }
+            }
+        }
+
+        timers.clear();
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null) connection.close();
+        }
+        
+        try {
+            selector.close();
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+    }
+
+    
+    /**
+     * Runs a task of the loop, so that a task failing never ends the loop and strands its
+     * other connections. The tasks of a connection close it themselves when they fail.
+     *
+     * @param task the task to run
+     */
+    private void runTask(Runnable task) {
+        
+        try {
+            task.run();
+        } 
+        
+        catch (RuntimeException e) {
+            server.display(new Message(e, "Exception running a task on " + getName()));
+        }
+    }
+
+    
+    /**
+     * A task due at a deadline.
+     */
+    private static class Timer implements Comparable<Timer> {
+        
+        // when the task is due, in System.nanoTime() terms
+        final long deadline;
+        
+        // the task to run
+        final Runnable task;
+        
+        Timer(long deadline, Runnable task) {
+            
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.chat.server.impl;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.Handshake;
+import com.chat.common.io.MessageDecoder;
+import com.chat.common.io.MessageEncoder;
+import com.chat.server.ClientConnection;
+import com.chat.server.OutboundQueue;
+import com.chat.server.RateLimiter;
+import com.chat.server.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * A client served by an {@link EventLoop}.
+ * Reads are parsed from a per-connection buffer as whole frames arrive,
+ * writes are queued and flushed by the loop whenever the socket accepts them.
+ */
+class NioConnection implements ClientConnection {
+    
+    // the initial size of the read buffer, it grows up to one maximum frame
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    
+    // how long a new client may take to send its handshake
+    private static final long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    // the channel of this client
+    private final SocketChannel channel;
+    
+    // the registration of the channel with its loop
+    private final SelectionKey key;
+    
+    // the loop serving this client
+    private final EventLoop loop;
+    
+    // The server this client is connected to
+    private final NioServer server;
+    
+    // the bytes received but not yet parsed into frames
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    
+    // the frames waiting to be written, shared with the writing threads
+    private final OutboundQueue writeQueue;
+    
+    // the frame being written, taken off the queue so a dropped frame is never half sent
+    private ByteBuffer pending;
+    
+    // set while a flush is pending on the loop
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    
+    // the task flushing the write queue on the loop
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            
+            try {
+                flush();
+            } 
+            
+            catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+    };
+    
+    // this is the unique clientId for this connection
+    private final int clientId;
+    
+    // the name of the user connected, null until the handshake is read
+    private volatile String username;
+    
+    // The date since the client is active
+    private String date;
+    
+    // turned on once the connection is closed
+    private volatile boolean isClosed;
+    
+    // when the last frame was read, for the idle reaper
+    private volatile long lastActivity = System.currentTimeMillis();
+    
+    // whether the client accepted compressed frames
+    private volatile boolean compression;
+    
+    // a message held back by the rate limit, reading stops until it is handled
+    private Message delayed;
+    
+    // the task handling the delayed message on the loop
+    private final Runnable resumeTask = new Runnable() {
+        @Override
+        public void run() {
+            
+            try {
+                resume();
+            } 
+            
+            catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+    };
+    
+    // the task dropping the client if it is still silent once the handshake timeout has passed
+    private final Runnable handshakeTask = new Runnable() {
+        @Override
+        public void run() {
+            
+            if (username != null || isClosed) return;
+            server.display(new Message("Disconnecting " + channel.socket().getRemoteSocketAddress() + ", the client sent no handshake."));
+            close();
+        }
+    };
+
+    
+    /**
+     * Constructs a connection for an accepted channel.
+     *
+     * @param channel the client channel
+     * @param key     the registration of the channel
+     * @param loop    the loop serving the channel
+     * @param server  the server instance
+     */
+    NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop, NioServer server) {
+        
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.server = server;
+        this.clientId = Server.connectionId.incrementAndGet();
+        this.writeQueue = new OutboundQueue(server.getConfig());
+    }
+
+    
+    /**
+     * Gives the client a limited time to send its handshake. Called on the loop thread only.
+     */
+    void awaitHandshake() {
+        
+        loop.schedule(handshakeTask, HANDSHAKE_TIMEOUT_NANOS);
+    }
+
+    
+    @Override
+    public int getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public String getDate() {
+        return date;
+    }
+
+    
+    /**
+     * Reads what the socket has and handles every complete frame.
+     * Called on the loop thread only.
+     */
+    void onReadable() {
+        
+        try {
+            if (channel.read(readBuffer) < 0) {
+                closed();
+                return;
+            }
+
+            readBuffer.flip();
+            if (!handleFrames()) {
+                closed();
+                return;
+            }
+            readBuffer.compact();
+        } 
+        
+        catch (IOException e) {
+            server.display(new Message(e, username + " Exception reading Streams"));
+            closed();
+        }
+    }
+
+    
+    /**
+     * Handles every complete frame of the flipped read buffer, stopping early
+     * when a message is held back by the rate limit.
+     *
+     * @return false once the client has signed out
+     * @throws IOException if a frame is corrupt
+     */
+    private boolean handleFrames() throws IOException {
+        
+        while (readBuffer.hasRemaining() && delayed == null) {
+            int length = Frames.peekLength(readBuffer);
+            if (length < 0) break;
+            
+            int frameSize = Frames.varintSize(length) + length;
+            if (readBuffer.remaining() < frameSize) {
+                ensureCapacity(frameSize);
+                break;
+            }
+
+            readBuffer.position(readBuffer.position() + Frames.varintSize(length));
+            byte[] payload = new byte[length];
+            readBuffer.get(payload);
+            
+            if (!onFrame(ByteBuffer.wrap(payload))) return false;
+        }
+        return true;
+    }
+
+    
+    /**
+     * Handles the message held back by the rate limit, then the frames read before it
+     * was, and reads the socket again unless another message is held back.
+     * Called on the loop thread only.
+     */
+    private void resume() {
+        
+        if (isClosed) return;
+        Message message = delayed;
+        delayed = null;
+        
+        try {
+            readBuffer.flip();
+            boolean active = server.handle(this, message) && handleFrames();
+            readBuffer.compact();
+            
+            if (!active) closed();
+            else if (delayed == null) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } 
+        
+        catch (IOException e) {
+            server.display(new Message(e, username + " Exception reading Streams"));
+            closed();
+        }
+    }
+
+    
+    /**
+     * Handles the payload of one frame, the handshake first and messages after it.
+     *
+     * @param payload the frame payload
+     * @return false once the client has signed out
+     * @throws IOException if the frame is corrupt
+     */
+    private boolean onFrame(ByteBuffer payload) throws IOException {
+        
+        lastActivity = System.currentTimeMillis();
+        
+        if (username == null) {
+            Handshake hello = Handshake.decode(payload);
+            username = hello.getUsername();
+            date = new Date().toString() + "\n";
+            Handshake reply = server.openSession(clientId, hello);
+            compression = reply.has(Handshake.DEFLATE);
+            enqueue(reply.encode());
+            server.add(this);
+            return true;
+        }
+        
+        Message message = MessageDecoder.decode(payload);
+        long wait = server.admit(this, message);
+        if (wait == RateLimiter.DROP) return true;
+        if (wait == RateLimiter.DISCONNECT) return false;
+        
+        if (wait > 0) {
+            // the client is not read meanwhile, so it is slowed down by its own socket
+            delayed = message;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(resumeTask, wait);
+            return true;
+        }
+        return server.handle(this, message);
+    }
+
+    
+    /**
+     * Grows the flipped read buffer so a frame of the given size fits.
+     *
+     * @param frameSize the size of the pending frame, header included
+     */
+    private void ensureCapacity(int frameSize) {
+        
+        if (readBuffer.capacity() >= frameSize) return;
+        ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+        bigger.put(readBuffer);
+        bigger.flip();
+        readBuffer = bigger;
+    }
+
+    
+    /**
+     * Queues a message for the loop to write, from any thread.
+     *
+     * @param msg the message to send
+     * @return false if the client can no longer be reached
+     */
+    @Override
+    public boolean writeMsg(Message msg) {
+        
+        return enqueue(MessageEncoder.encode(msg));
+    }
+
+    
+    /**
+     * Queues a shared, already encoded frame for the loop to write, from any thread.
+     *
+     * @param frame the read-only frame to send
+     * @return false if the client can no longer be reached
+     */
+    @Override
+    public boolean writeFrame(ByteBuffer frame) {
+        
+        return enqueue(frame.duplicate());
+    }
+
+    
+    @Override
+    public boolean acceptsCompression() {
+        
+        return compression;
+    }
+
+    
+    @Override
+    public int getQueueDepth() {
+        
+        return writeQueue.size() + (pending != null ? 1 : 0);
+    }
+
+    
+    @Override
+    public long getLastActivity() {
+        
+        return lastActivity;
+    }
+
+    
+    /**
+     * Queues a complete frame for the loop to write, from any thread.
+     * Event loops never wait for room, whatever the overflow policy.
+     *
+     * @param frame the frame to send
+     * @return false if the client can no longer be reached
+     */
+    private boolean enqueue(ByteBuffer frame) {
+        
+        if (isClosed) return false;
+        
+        if (!writeQueue.offer(frame, !(Thread.currentThread() instanceof EventLoop))) {
+            server.display(new Message("Disconnecting " + username + ", the client is not reading fast enough."));
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closed();
+                }
+            });
+            return false;
+        }
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inLoop()) flush();
+            else loop.execute(flushTask);
+        }
+        return true;
+    }
+
+    
+    /**
+     * Writes the socket becoming writable again.
+     */
+    void onWritable() {
+        
+        flush();
+    }
+
+    
+    /**
+     * Writes queued frames until the queue is empty or the socket is full.
+     * Called on the loop thread only.
+     */
+    private void flush() {
+        
+        flushScheduled.set(false);
+        if (isClosed) return;
+        
+        ServerMetrics metrics = server.getMetrics();
+        int frames = 0;
+        long bytes = 0;
+        
+        try {
+            if (pending == null) pending = writeQueue.poll();
+            
+            while (pending != null) {
+                bytes += channel.write(pending);
+                
+                if (pending.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                frames++;
+                pending = writeQueue.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } 
+        
+        catch (IOException e) {
+            server.display(new Message(e, "Error sending message to " + username));
+            closed();
+        } 
+        
+        finally {
+            if (metrics != null && bytes > 0) metrics.written(frames, bytes);
+        }
+    }
+
+    
+    /**
+     * Ends the connection after a task of the loop failed on it, such as a flush finding
+     * its key cancelled by a close from another thread. Called on the loop thread only.
+     *
+     * @param e the failure
+     */
+    private void failed(RuntimeException e) {
+        
+        if (!isClosed) server.display(new Message(e, "Exception serving " + username));
+        closed();
+    }
+
+    
+    /**
+     * Ends the connection from the loop side and releases it on the server.
+     */
+    void closed() {
+        
+        if (isClosed) return;
+        if (username != null) server.disconnected(this);
+        else close();
+    }
+
+    
+    /**
+     * Closes the channel, from any thread.
+     */
+    @Override
+    public void close() {
+        
+        isClosed = true;
+        key.cancel();
+        writeQueue.clear();
+        
+        try {
+            channel.close();
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+    }
+}
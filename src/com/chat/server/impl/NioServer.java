@@ -0,0 +1,136 @@
+package com.chat.server.impl;
+
+import com.chat.common.data.Message;
+import com.chat.server.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A server built on non-blocking channels.
+ * The calling thread accepts connections and deals them round robin to a small,
+ * fixed pool of event loops, so the thread count no longer grows with the clients.
+ * Message handling is inherited from {@link Server}.
+ */
+public class NioServer extends Server {
+    
+    // how long to wait before accepting again after a failed accept, such as running out of file descriptors
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    
+    // the loops serving the accepted connections
+    private EventLoop[] loops;
+    
+    // the selector waiting for new connections
+    private volatile Selector acceptSelector;
+    
+    // the boolean that will be turned off to stop the server
+    private volatile boolean running;
+
+    
+    /**
+     * Constructs a NioServer instance with the specified port and configuration.
+     *
+     * @param port   the port number to listen for connections
+     * @param config the server configuration
+     */
+    public NioServer(int port, ServerConfig config) {
+        
+        super(port, config);
+    }
+
+    
+    /**
+     * Starts the event loops and accepts client connections until stopped.
+     */
+    @Override
+    public void start() {
+        
+        running = true;
+        startServices();
+        
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(getPort()));
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            loops = new EventLoop[config.getIoThreads()];
+            for (int i = 0; i < loops.length; ++i) {
+                loops[i] = new EventLoop(this, i);
+                loops[i].start();
+            }
+
+            display(new Message("Server waiting for Clients on port " + getPort() + " with "
+                    + loops.length + " event loops."));
+            
+            int next = 0;
+            
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                
+                // a failed accept only costs that connection, only the selector failing stops the server
+                try {
+                    SocketChannel channel;
+                    while (running && (channel = serverChannel.accept()) != null) {
+                        loops[next].register(channel);
+                        next = (next + 1) % loops.length;
+                    }
+                } 
+                
+                catch (IOException e) {
+                    display(new Message(e, "Exception accepting a connection"));
+                    pauseAccepting();
+                }
+            }
+
+            serverChannel.close();
+            acceptSelector.close();
+        } 
+        
+        catch (IOException e) {
+            display(new Message(e, "Exception on new ServerSocketChannel"));
+        }
+        
+        // the loops keep flushing while the queues drain
+        drainAndClose();
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                if (loop != null) loop.shutdown();
+            }
+        }
+    }
+
+    
+    /**
+     * Waits a moment after a failed accept, so a lasting failure does not spin the accepting thread.
+     */
+    private void pauseAccepting() {
+        
+        try {
+            Thread.sleep(ACCEPT_RETRY_MILLIS);
+        } 
+        
+        catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+    
+    /**
+     * Stops accepting connections by waking up the accepting thread.
+     */
+    @Override
+    protected void stopAccepting() {
+        
+        running = false;
+        Selector selector = acceptSelector;
+        if (selector != null) selector.wakeup();
+    }
+}
@@ -1,14 +1,42 @@
 package com.chat.server.impl;
 
 import com.chat.common.data.Message;
+import com.chat.common.io.Compression;
+import com.chat.common.io.Handshake;
+import com.chat.common.io.MessageEncoder;
+import com.chat.common.log.AsyncLog;
+import com.chat.common.utils.Type;
+import com.chat.server.ClientConnection;
+import com.chat.server.ClientRegistry;
+import com.chat.server.ClientThreads;
+import com.chat.server.IdleReaper;
 import com.chat.server.MsgBroadcaster;
+import com.chat.server.RateLimiter;
+import com.chat.server.RoomRegistry;
+import com.chat.server.ServerConfig;
+import com.chat.server.ServerMetrics;
 import com.chat.server.ServerSvc;
+import com.chat.server.SessionRegistry;
+import com.chat.server.StatsEndpoint;
+import com.chat.server.cluster.ClusterNode;
+import com.chat.server.log.MessageHistory;
+import com.chat.server.log.MessageLog;
+import com.chat.server.log.RecentMessages;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -17,16 +45,64 @@ import java.util.Date;
 public class Server implements ServerSvc {
     
     // a unique ID for each connection
-    public static int connectionId;
+    public static final AtomicInteger connectionId = new AtomicInteger();
     
-    // an ArrayList to keep the list of the Client
-    private ArrayList<MsgBroadcaster> allClients;
+    // the sequenced messages of a client between two ACKs
+    private static final int ACK_INTERVAL = 32;
+    
+    // the connected clients, keyed by client ID
+    private final ClientRegistry allClients = new ClientRegistry();
+    
+    // the subscribers of each room
+    private final RoomRegistry rooms = new RoomRegistry();
+    
+    // the sessions of the clients, kept for a while after a connection is lost
+    private final SessionRegistry sessions;
+    
+    // the limits of what clients send, null when no rate is configured
+    private final RateLimiter limiter;
     
     // the port number to listen for connection
     private int port;
     
+    // the settings this server was started with
+    protected final ServerConfig config;
+    
     // the boolean that will be turned off to stop the server
-    private boolean stopServer;
+    private volatile boolean stopServer;
+    
+    // the socket accepting connections, closed to stop accepting
+    private volatile ServerSocket serverSocket;
+    
+    // set once a shutdown has begun
+    private boolean shuttingDown;
+    
+    // when the outbound queues must be drained by, once shutting down
+    private volatile long drainDeadline;
+    
+    // the log the room messages are appended to, null when disabled
+    private MessageLog log;
+    
+    // the offset of the next room message
+    private final AtomicLong nextOffset = new AtomicLong(1);
+    
+    // the latest room messages
+    private RecentMessages recent;
+    
+    // the service replaying earlier messages
+    private MessageHistory history;
+    
+    // the hot path metrics, null when disabled
+    private final ServerMetrics metrics;
+    
+    // the HTTP endpoint serving the metrics, null when disabled
+    private StatsEndpoint statsEndpoint;
+    
+    // the reaper of silent clients, null when disabled
+    private IdleReaper reaper;
+    
+    // this server's node in its cluster, null when running alone
+    private volatile ClusterNode cluster;
 
     
     /**
@@ -36,129 +112,836 @@ public class Server implements ServerSvc {
      */
     public Server(int port) {
         
+        this(port, ServerConfig.fromSystemProperties());
+    }
+
+    
+    /**
+     * Constructs a Server instance with the specified port and configuration.
+     *
+     * @param port   the port number to listen for connections
+     * @param config the server configuration
+     */
+    public Server(int port, ServerConfig config) {
+        
         this.port = port;
-        allClients = new ArrayList<MsgBroadcaster>();
+        this.config = config;
+        this.metrics = config.isMetricsEnabled() ? new ServerMetrics() : null;
+        this.sessions = new SessionRegistry(config.getSessionGraceMillis());
+        this.limiter = config.getUserRate() > 0 || config.getRoomRate() > 0 ? new RateLimiter(config) : null;
     }
 
     
     /**
-     * Starts the server and listens for client connections.
+     * Starts the server and listens for client connections until it is shut down.
      */
     public void start() {
         
         stopServer = true;
+        startServices();
+        
+        if (config.getThreadMode() == ServerConfig.ThreadMode.VIRTUAL && !ClientThreads.isVirtualSupported())
+            display(new Message("Virtual threads are not available on this runtime, using platform threads."));
+        ThreadFactory threads = ClientThreads.factory(config.getThreadMode(), "client-");
         
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            serverSocket = new ServerSocket(port);
             
             while (stopServer) {
                 display(new Message("Server waiting for Clients on port " + port + "."));
 
-                Socket socket = serverSocket.accept();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } 
                 
-                if (!stopServer) break;
+                catch (SocketException e) {
+                    if (!stopServer) break; // the socket was closed to stop accepting
+                    throw e;
+                }
                 
-                MsgBroadcaster t = new MsgBroadcaster(socket, this);
+                // one client failing must not stop the others from connecting
+                try {
+                    // writes are already batched by the writer task
+                    socket.setTcpNoDelay(true);
+                    
+                    // the client is added by its reader task once its handshake is read
+                    MsgBroadcaster t = new MsgBroadcaster(socket, this);
+                    
+                    t.start(threads);
+                } 
                 
-                allClients.add(t);
+                catch (IOException e) {
+                    AsyncLog.warn("Server", "Dropping " + socket.getRemoteSocketAddress() + ", cannot open its streams", e);
+                    closeQuietly(socket);
+                } 
                 
-                t.start();
+                catch (RuntimeException e) {
+                    AsyncLog.error("Server", "Dropping " + socket.getRemoteSocketAddress() + ", could not add it", e);
+                    closeQuietly(socket);
+                }
             }
+        } 
+        
+        catch (IOException e) {
+            AsyncLog.error("Server", "Exception on new ServerSocket", e);
+        }
+        
+        stopAccepting();
+        drainAndClose();
+    }
 
-            try {
-                serverSocket.close();
-                for (int i = 0; i < allClients.size(); ++i) {
-                    MsgBroadcaster client = allClients.get(i);
-                    client.close();
+    
+    /**
+     * Starts what runs next to the client connections: the history, the metrics sampler,
+     * the stats endpoint, the idle reaper and the links to the other nodes of the cluster.
+     */
+    protected void startServices() {
+        
+        openHistory();
+        joinCluster();
+        if (metrics != null) metrics.start();
+        
+        if (config.getIdleTimeoutMillis() > 0) {
+            reaper = new IdleReaper(config.getIdleTimeoutMillis(), new IdleReaper.Owner() {
+                @Override
+                public boolean isConnected(ClientConnection client) {
+                    
+                    return allClients.get(client.getClientId()) == client;
+                }
+
+                @Override
+                public void evict(List<ClientConnection> clients) {
+                    
+                    evictIdle(clients);
                 }
+            });
+        }
+        
+        if (config.getStatsPort() > 0) {
+            try {
+                statsEndpoint = new StatsEndpoint(config.getStatsPort(), metrics, allClients.all());
+                display(new Message("Serving stats on http://localhost:" + config.getStatsPort() + "/stats"));
             } 
             
-            catch (Exception e) {
-                display(new Message(e, "Exception closing the server and clients"));
-                e.printStackTrace();
+            catch (IOException e) {
+                display(new Message(e, "Exception starting the stats endpoint"));
+            }
+        }
+    }
+
+    
+    /**
+     * Stops what startServices started.
+     */
+    protected void stopServices() {
+        
+        ClusterNode node = cluster;
+        cluster = null;
+        if (node != null) node.stop();
+        if (statsEndpoint != null) statsEndpoint.stop();
+        statsEndpoint = null;
+        if (reaper != null) reaper.stop();
+        reaper = null;
+        if (metrics != null) metrics.stop();
+        closeHistory();
+    }
+
+    
+    /**
+     * Opens the message log when one is configured, continuing its offsets,
+     * and starts the history service over it and the ring of recent messages.
+     * The server keeps running without a log when it cannot be opened.
+     */
+    private void openHistory() {
+        
+        if (config.getLogDir() != null) {
+            try {
+                log = MessageLog.open(new File(config.getLogDir()), config.getLogSegmentBytes());
+                nextOffset.set(log.getNextOffset());
+                display(new Message("Logging messages to " + config.getLogDir() + " from offset " + log.getNextOffset() + "."));
+            } 
+            
+            catch (IOException e) {
+                display(new Message(e, "Exception opening the message log, messages will not be kept"));
+            }
+        }
+        
+        recent = new RecentMessages(config.getRecentMessages(), nextOffset.get());
+        history = new MessageHistory(recent, log, nextOffset, config.getHistoryLimit(),
+                ClientThreads.factory(ServerConfig.ThreadMode.PLATFORM, "history-"));
+    }
+
+    
+    /**
+     * Starts this server's node when a cluster port is configured. The node ID defaults
+     * to the host and client port, so that nodes started on one machine differ.
+     */
+    private void joinCluster() {
+        
+        if (config.getClusterPort() <= 0) return;
+        
+        String host = config.getClusterHost();
+        if (host == null) {
+            try {
+                host = InetAddress.getLocalHost().getHostAddress();
+            } 
+            
+            catch (IOException e) {
+                host = "localhost";
+            }
+        }
+        String nodeId = config.getNodeId() != null ? config.getNodeId() : host + ":" + port;
+        
+        ClusterNode node = new ClusterNode(nodeId, host, config.getClusterPort(), config.getPeers(), new ClusterNode.Host() {
+            @Override
+            public void deliver(Message message) {
+                
+                deliverRelayed(message);
+            }
+
+            @Override
+            public void deliverDirect(Message message) {
+                
+                ClientConnection recipient = allClients.get(message.getRecipient());
+                if (recipient != null) recipient.writeMsg(message);
+            }
+
+            @Override
+            public void presence(List<Message> into) {
+                
+                for (ClientConnection client : allClients.all()) {
+                    for (String room : rooms.roomsOf(client))
+                        into.add(ClusterNode.presence(Type.JOIN, client.getUsername(), room));
+                }
             }
+        });
+        
+        try {
+            node.start();
+            cluster = node;
         } 
         
         catch (IOException e) {
-            display(new Message(e, "Exception on new ServerSocket"));
-            e.printStackTrace();
+            display(new Message(e, "Exception opening the cluster port, running alone"));
         }
     }
 
     
     /**
-     * Stops the server.
+     * Stops the history service, then writes the messages still waiting for the log and closes it.
+     */
+    private void closeHistory() {
+        
+        if (history != null) history.close();
+        if (log != null) log.close();
+        log = null;
+    }
+
+    
+    /**
+     * Stops the server gracefully, giving the outbound queues the configured time to drain.
      */
     public void stop() {
         
+        shutdown(config.getShutdownDrainMillis());
+    }
+
+    
+    /**
+     * Starts a graceful shutdown: the server stops accepting connections, then the
+     * thread running start() notifies the clients, drains their queues and closes them.
+     *
+     * @param drainMillis how long the outbound queues may take to drain
+     */
+    public void shutdown(long drainMillis) {
+        
+        synchronized (this) {
+            if (shuttingDown) return;
+            shuttingDown = true;
+        }
+        drainDeadline = System.currentTimeMillis() + drainMillis;
+        display(new Message("Shutting down the server."));
+        stopAccepting();
+    }
+
+    
+    /**
+     * Stops accepting connections and wakes up the thread running start().
+     */
+    protected void stopAccepting() {
+        
         stopServer = false;
+        ServerSocket socket = serverSocket;
         
         try {
-            display(new Message("Stopping the server as no client connections active."));
-            new Socket("localhost", port);
+            if (socket != null) socket.close();
+        } 
+        
+        catch (IOException e) {
+            AsyncLog.warn("Server", "Exception closing the server socket", e);
+        }
+    }
+
+    
+    /**
+     * Closes the socket of a client that could not be added.
+     *
+     * @param socket the client socket
+     */
+    private void closeQuietly(Socket socket) {
+        
+        try {
+            socket.close();
         } 
         
-        catch (Exception e) {
-            e.printStackTrace();
+        catch (IOException e) {
+        } // not much else I can do
+    }
+
+    
+    /**
+     * The end of a shutdown, once no connection is accepted anymore: sends every client
+     * a SHUTDOWN notice, waits until their queues are empty or the deadline has passed,
+     * closes them and stops the services.
+     */
+    protected void drainAndClose() {
+        
+        Message notice = new Message("The server is shutting down.", Type.SHUTDOWN);
+        for (ClientConnection client : allClients.all()) client.writeMsg(notice);
+        
+        while (System.currentTimeMillis() < drainDeadline && hasQueuedFrames()) {
+            try {
+                Thread.sleep(10);
+            } 
+            
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        
+        int undelivered = 0;
+        for (ClientConnection client : new ArrayList<ClientConnection>(allClients.all())) {
+            undelivered += client.getQueueDepth();
+            remove(client.getClientId());
+            client.close();
+        }
+        if (undelivered > 0) display(new Message(undelivered + " frames were still queued when the clients were closed.", Type.ERROR));
+        
+        stopServices();
+        display(new Message("Server stopped."));
+        
+        synchronized (this) {
+            shuttingDown = false; // may be started again
         }
     }
 
     
+    private boolean hasQueuedFrames() {
+        
+        for (ClientConnection client : allClients.all()) {
+            if (client.getQueueDepth() > 0) return true;
+        }
+        return false;
+    }
+
+    
     /**
-     * Displays a message on the server console.
+     * Stops the server once its last client has left, when configured to.
+     */
+    private void stopIfEmpty() {
+        
+        if (config.isStopWhenEmpty() && allClients.isEmpty()) {
+            display(new Message("Stopping the server as no client connections active."));
+            stop();
+        }
+    }
+
+    
+    /**
+     * Displays a message on the server console, through the asynchronous log
+     * so that callers on the hot paths never wait for the console.
+     * ERROR messages are logged as warnings: they report a client or an I/O
+     * failure the server recovers from.
      *
      * @param msg the message to display
      */
     public void display(Message msg) {
         
-        System.out.println(msg.toString());
+        if (msg.getType() == Type.ERROR) AsyncLog.warn("Server", msg.getMsg(), null);
+        else AsyncLog.info("Server", msg.getMsg());
     }
 
     
     /**
-     * Broadcasts a message to all connected clients.
+     * Broadcasts a message to the members of its room.
+     * The message is encoded once and the same read-only frame is handed to every member,
+     * a large one is also compressed once for the members that accept it.
      *
      * @param message the message to broadcast
      */
-    public synchronized void broadcast(Message message) {
+    public void broadcast(Message message) {
+        
+        message.setTimestamp(System.currentTimeMillis());
+        ClusterNode node = cluster;
+        if (node != null) message.setId(node.nextId());
+        ByteBuffer frame = fanOut(message);
+        if (node != null) node.relay(frame);
+    }
+
+    
+    /**
+     * Broadcasts a room message under the next log offset, then keeps its frame
+     * for history requests and hands it to the log.
+     * The log only queues the frame, the disk is written by its own thread.
+     * In a cluster the same frame is relayed to the other nodes, under an ID unique in the cluster.
+     *
+     * @param message the message to publish
+     */
+    public void publish(Message message) {
         
-        message.setTime(new Date());
+        message.setTimestamp(System.currentTimeMillis());
+        ClusterNode node = cluster;
+        if (node != null) message.setId(node.nextId());
+        ByteBuffer frame = store(message);
+        if (node != null) node.relay(frame);
+    }
+
+    
+    /**
+     * Delivers a room message or notice relayed by another node of the cluster.
+     * Messages are published under a local offset, keeping the time and ID given by their
+     * node; nothing is relayed again as the sending node relays to every peer itself.
+     *
+     * @param message the relayed message
+     */
+    protected void deliverRelayed(Message message) {
+        
+        if (metrics != null) metrics.messageIn();
+        if (message.getType() == Type.MSG) store(message);
+        else fanOut(message);
+    }
+
+    
+    /**
+     * Broadcasts a timestamped room message under the next log offset, keeps its frame
+     * for history requests and hands it to the log.
+     *
+     * @param message the message
+     * @return the frame that was sent
+     */
+    private ByteBuffer store(Message message) {
         
-        for (int i = allClients.size(); --i >= 0; ) {
-            MsgBroadcaster client = allClients.get(i);
-            if (!client.writeMsg(message)) {
-                allClients.remove(i);
-                display(new Message("Disconnected Client " + client.getName() + " removed from list."));
+        message.setOffset(nextOffset.getAndIncrement());
+        ByteBuffer frame = fanOut(message);
+        
+        RecentMessages ring = recent;
+        if (ring != null) ring.add(message.getOffset(), message.getTimestamp(), message.getRoom(), frame);
+        MessageLog messageLog = log;
+        if (messageLog != null) messageLog.append(message.getOffset(), message.getTimestamp(), frame);
+        return frame;
+    }
+
+    
+    /**
+     * Encodes a message once and hands the same read-only frame to every member of its room.
+     * A frame above the compression threshold is deflated once, when the first member that
+     * accepts compressed frames is reached, and that copy goes to every such member. The
+     * plain frame is the one returned, so history and the cluster never see compressed frames.
+     *
+     * @param message the message to send
+     * @return the plain frame that was sent
+     */
+    private ByteBuffer fanOut(Message message) {
+        
+        long started = metrics != null ? System.nanoTime() : 0;
+        // a message without a room goes to the lobby, and names it on the wire as the encoder leaves a missing room empty
+        if (!message.hasRoom()) message.setRoom(Message.DEFAULT_ROOM);
+        ByteBuffer frame = MessageEncoder.encode(message).asReadOnlyBuffer();
+        
+        long encoded = 0;
+        if (metrics != null) {
+            encoded = System.nanoTime();
+            metrics.encoded(encoded - started);
+        }
+        
+        int threshold = config.getCompressThreshold();
+        boolean compressible = threshold > 0 && frame.remaining() > threshold;
+        ByteBuffer compressed = null;
+        int compressedSends = 0;
+        
+        for (ClientConnection client : rooms.members(message.getRoom())) {
+            ByteBuffer sent = frame;
+            if (compressible && client.acceptsCompression()) {
+                if (compressed == null) {
+                    compressed = Compression.compress(frame);
+                    // not worth it, the plain frame goes to everyone
+                    if (compressed == null) compressible = false;
+                    else compressed = compressed.asReadOnlyBuffer();
+                }
+                if (compressed != null) {
+                    sent = compressed;
+                    compressedSends++;
+                }
+            }
+            if (!client.writeFrame(sent) && allClients.get(client.getClientId()) != null) {
+                remove(client.getClientId());
+                display(new Message("Disconnected Client " + client.getUsername() + " removed from list."));
             }
         }
+        
+        if (metrics != null) {
+            if (compressed != null) metrics.compressed((long) compressedSends * (frame.remaining() - compressed.remaining()));
+            metrics.fanOut(System.nanoTime() - encoded);
+        }
+        return frame;
     }
 
     
     /**
-     * Removes a client from the list of connected clients.
+     * Checks a message received from a client against the rate limits, before it is handled.
+     * Depending on the configured action a message over a limit is dropped, with a warning
+     * at most once a second, delayed, or costs the client its connection with an ERROR.
      *
-     * @param id the client ID
+     * @param client  the client that sent the message
+     * @param message the message received
+     * @return 0 to handle the message now, the nanoseconds to wait before handling it,
+     *         RateLimiter.DROP to drop it or RateLimiter.DISCONNECT to close the connection
+     */
+    public long admit(ClientConnection client, Message message) {
+        
+        if (limiter == null || !RateLimiter.isLimited(message.getType())) return 0;
+        
+        long wait = limiter.acquire(client.getClientId(), message.getType() == Type.MSG ? message.getRoom() : null);
+        if (wait == 0) return 0;
+        if (metrics != null) metrics.rateLimited();
+        
+        switch (config.getRateAction()) {
+            
+            case DELAY:
+                return wait;
+                
+            case DISCONNECT:
+                sessions.end(client.getClientId());
+                client.writeMsg(new Message("Disconnected for sending messages too fast.", Type.ERROR));
+                display(new Message("Disconnecting " + client.getUsername() + ", the client is sending too fast."));
+                return RateLimiter.DISCONNECT;
+                
+            default:
+                if (limiter.warn(client.getClientId()))
+                    client.writeMsg(new Message("You are sending messages too fast, some were dropped.", Type.ERROR));
+                return RateLimiter.DROP;
+        }
+    }
+
+    
+    /**
+     * Handles a message received from a client.
+     *
+     * @param client  the client that sent the message
+     * @param message the message received
+     * @return false once the client has signed out
+     */
+    public boolean handle(ClientConnection client, Message message) {
+        
+        String room = message.getRoom();
+        ClusterNode node = cluster;
+        if (metrics != null) metrics.messageIn();
+        
+        // a sequenced message may be sent again by a client resuming its session
+        SessionRegistry.Session session = null;
+        long seq = message.getId();
+        if (seq > 0) {
+            message.setId(0);
+            session = sessions.get(client.getClientId());
+            if (session != null && !session.handled(seq)) return true;
+        }
+        
+        switch (message.getType()) {
+            
+            case MSG:
+                // the sender is the connection, never what the client wrote in the message
+                message.setUsername(client.getUsername());
+                if (rooms.isMember(room, client)) publish(message);
+                else client.writeMsg(new Message("You are not in the room " + room, Type.ERROR));
+                break;
+                
+            case SIGNOUT:
+                sessions.end(client.getClientId());
+                display(new Message(client.getUsername() + " disconnected with a LOGOUT message."));
+                return false;
+                
+            case ALL_USERS:
+                
+                client.writeMsg(new Message("List of the users connected to " + room));
+                
+                // scan all the users of the room
+                int i = 0;
+                for (ClientConnection ct : rooms.members(room)) {
+                    client.writeMsg(new Message((++i) + ") " + ct.getUsername() + " since " + ct.getDate()));
+                }
+                
+                // then the users of the room on the other nodes
+                if (node != null) {
+                    for (String user : node.roster(room)) client.writeMsg(new Message((++i) + ") " + user));
+                }
+                break;
+                
+            case DIRECT:
+                sendDirect(client, message);
+                break;
+                
+            case STATS:
+                if (metrics != null) client.writeMsg(new Message(metrics.toJson(allClients.all()), Type.STATS));
+                else client.writeMsg(new Message("Metrics are disabled on this server", Type.ERROR));
+                break;
+                
+            case PING:
+                client.writeMsg(new Message("", Type.PONG));
+                break;
+                
+            case PONG:
+                // being read was enough to show the client is alive
+                break;
+                
+            case HISTORY:
+                if (history != null && rooms.isMember(room, client)) history.replay(client, message);
+                else client.writeMsg(new Message("You are not in the room " + room, Type.ERROR));
+                break;
+                
+            case JOIN:
+                if (rooms.join(room, client)) {
+                    if (node != null) node.userJoined(client.getUsername(), room);
+                    broadcast(roomNotice(room, client.getUsername() + " joined the room."));
+                }
+                break;
+                
+            case LEAVE:
+                if (rooms.leave(room, client)) {
+                    if (node != null) node.userLeft(client.getUsername(), room);
+                    client.writeMsg(roomNotice(room, "You left the room."));
+                    broadcast(roomNotice(room, client.getUsername() + " left the room."));
+                }
+                break;
+        }
+        
+        if (session != null && session.ackDue(ACK_INTERVAL)) client.writeMsg(ack(session));
+        return true;
+    }
+
+    
+    /**
+     * Attaches a connection that completed its handshake to the session it asks for, or
+     * to a new one. A session still attached to an earlier connection of the same user,
+     * one the server has not found dead yet, is taken from it and that connection closed.
+     *
+     * @param clientId the ID of the new connection, not added yet
+     * @param hello    the handshake of the client
+     * @return the handshake to answer with, and the capabilities of the client the server accepts
+     */
+    public Handshake openSession(int clientId, Handshake hello) {
+        
+        SessionRegistry.Session session = sessions.open(hello.getSession(), hello.getUsername(), clientId);
+        
+        if (session.isResumed()) {
+            ClientConnection previous = allClients.get(session.getPreviousClientId());
+            if (previous != null) {
+                session.setRooms(rooms.roomsOf(previous));
+                remove(previous.getClientId());
+                previous.close();
+            }
+            display(new Message(hello.getUsername() + " resumed its session."));
+        }
+        else display(new Message(hello.getUsername() + " just connected."));
+        
+        int accepted = config.getCompressThreshold() > 0 ? hello.getFlags() & Handshake.DEFLATE : 0;
+        return new Handshake(hello.getUsername(), session.getToken(), session.getLastSeq(), accepted);
+    }
+
+    
+    /**
+     * Creates the message telling a client the last sequence handled in its session.
+     *
+     * @param session the session of the client
+     * @return the message
+     */
+    private Message ack(SessionRegistry.Session session) {
+        
+        Message ack = new Message("", Type.ACK);
+        ack.setOffset(session.getLastSeq());
+        return ack;
+    }
+
+    
+    /**
+     * Delivers a direct message with a single write to its recipient, echoing it to the sender.
+     * A recipient connected to another node of the cluster gets it through that node.
+     *
+     * @param sender  the client that sent the message
+     * @param message the direct message
      */
-    public synchronized void remove(int id) {
+    public void sendDirect(ClientConnection sender, Message message) {
         
-        for (int i = 0; i < allClients.size(); ++i) {
-            MsgBroadcaster client = allClients.get(i);
-            if (client.getClientId() == id) {
-                allClients.remove(i);
-                return;
+        ClientConnection recipient = allClients.get(message.getRecipient());
+        message.setUsername(sender.getUsername());
+        message.setTimestamp(System.currentTimeMillis());
+        
+        if (recipient == null) {
+            ClusterNode node = cluster;
+            if (node != null) {
+                message.setId(node.nextId());
+                ByteBuffer frame = MessageEncoder.encode(message).asReadOnlyBuffer();
+                if (node.sendDirect(message.getRecipient(), frame)) {
+                    sender.writeFrame(frame);
+                    return;
+                }
             }
+            sender.writeMsg(new Message(message.getRecipient() + " is not online.", Type.ERROR));
+            return;
+        }
+
+        ByteBuffer frame = MessageEncoder.encode(message).asReadOnlyBuffer();
+        if (!recipient.writeFrame(frame))
+            sender.writeMsg(new Message("Could not deliver the message to " + message.getRecipient(), Type.ERROR));
+        else if (recipient != sender)
+            sender.writeFrame(frame);
+    }
+
+    
+    /**
+     * Creates an informational message addressed to a room.
+     *
+     * @param room the room name
+     * @param text the message content
+     * @return the message
+     */
+    private Message roomNotice(String room, String text) {
+        
+        Message notice = new Message(text);
+        notice.setRoom(room);
+        return notice;
+    }
+
+    
+    /**
+     * Releases a client whose connection has ended, stopping the server once nobody is left.
+     *
+     * @param client the client that left
+     */
+    public void disconnected(ClientConnection client) {
+        
+        remove(client.getClientId());
+        client.close();
+        stopIfEmpty();
+    }
+
+    
+    /**
+     * Disconnects the clients the reaper found silent for longer than the idle timeout.
+     *
+     * @param clients the idle clients
+     */
+    protected void evictIdle(List<ClientConnection> clients) {
+        
+        StringBuilder names = new StringBuilder();
+        for (ClientConnection client : clients) {
+            remove(client.getClientId());
+            client.close();
+            if (names.length() > 0) names.append(", ");
+            names.append(client.getUsername());
+        }
+        display(new Message("Disconnected " + clients.size() + " idle clients: " + names));
+        stopIfEmpty();
+    }
+
+    
+    /**
+     * Adds a client to the list of connected clients and to the default room,
+     * or quietly back to its rooms when it resumed its session.
+     *
+     * @param client the client that joined
+     */
+    public void add(ClientConnection client) {
+        
+        allClients.add(client);
+        
+        SessionRegistry.Session session = sessions.get(client.getClientId());
+        Collection<String> joined = Collections.singletonList(Message.DEFAULT_ROOM);
+        if (session != null && session.isResumed() && !session.getRooms().isEmpty()) joined = session.getRooms();
+        
+        ClusterNode node = cluster;
+        for (String room : joined) {
+            rooms.join(room, client);
+            if (node != null) node.userJoined(client.getUsername(), room);
         }
+        if (metrics != null) metrics.connected();
+        
+        IdleReaper idleReaper = reaper;
+        if (idleReaper != null) idleReaper.watch(client);
+    }
+
+    
+    /**
+     * Removes a client from the list of connected clients and from its rooms.
+     *
+     * @param id the client ID
+     */
+    public void remove(int id) {
+        
+        ClientConnection client = allClients.remove(id);
+        if (client == null) return;
+        sessions.detach(id, rooms.roomsOf(client));
+        rooms.leaveAll(client);
+        if (limiter != null) limiter.forget(id);
+        if (metrics != null) metrics.disconnected();
+        // the user may still be connected here through another connection, after a resume or a second login
+        ClusterNode node = cluster;
+        if (node != null && allClients.get(client.getUsername()) == null) node.userGone(client.getUsername());
+    }
+
+    
+    /**
+     * Returns all connected clients, as a view safe to iterate while clients come and go.
+     *
+     * @return all connected clients
+     */
+    public Collection<ClientConnection> getAllClients() {
+        
+        return allClients.all();
+    }
+
+    
+    /**
+     * Returns the settings this server was started with.
+     *
+     * @return the server configuration
+     */
+    public ServerConfig getConfig() {
+        
+        return config;
+    }
+
+    
+    /**
+     * Returns the hot path metrics.
+     *
+     * @return the metrics, null when disabled
+     */
+    public ServerMetrics getMetrics() {
+        
+        return metrics;
     }
 
     
     /**
-     * Returns the list of all connected clients.
+     * Returns the port number this server listens on.
      *
-     * @return the list of all connected clients
+     * @return the port number
      */
-    public ArrayList<MsgBroadcaster> getAllClients() {
+    public int getPort() {
         
-        return allClients;
+        return port;
     }
 }
 
@@ -0,0 +1,407 @@
+package com.chat.server.log;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.io.MessageDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * One memory-mapped file of the message log, holding the records from its base offset on.
+ * A record is [size][crc][offset][timestamp][message frame]; its body is written before
+ * its size, so a zero size marks the end of the data and a bad CRC a torn write.
+ * Every INDEX_INTERVAL_BYTES a record is added to the sparse offset/time index, which is
+ * kept in memory and appended to a companion .idx file at each commit.
+ * Only the appender thread writes, readers only look below the committed position.
+ */
+class LogSegment {
+    
+    // the size field, then crc, offset and timestamp
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    
+    // the bytes of an index entry: offset, timestamp and position
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+    
+    // the offset of the first record of the segment
+    final long baseOffset;
+    
+    // the mapped data file
+    private final MappedByteBuffer buffer;
+    
+    // the channel of the data file
+    private final FileChannel channel;
+    
+    // the channel of the index file
+    private final FileChannel indexChannel;
+    
+    // the sparse index, entries are appended in offset order
+    private long[] indexOffsets = new long[64];
+    private long[] indexTimestamps = new long[64];
+    private int[] indexPositions = new int[64];
+    private int indexSize;
+    
+    // the index entries not yet written to the index file
+    private int indexPersisted;
+    
+    // where the next record goes, appender thread only
+    private int position;
+    
+    // the end of the data readers may see
+    private volatile int committed;
+    
+    // the offset of the last record
+    private long lastOffset;
+
+    
+    private LogSegment(File dir, long baseOffset, int size) throws IOException {
+        
+        this.baseOffset = baseOffset;
+        RandomAccessFile data = new RandomAccessFile(new File(dir, fileName(baseOffset, ".log")), "rw");
+        if (data.length() < size) data.setLength(size);
+        this.channel = data.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, data.length());
+        this.indexChannel = new RandomAccessFile(new File(dir, fileName(baseOffset, ".idx")), "rw").getChannel();
+        this.lastOffset = baseOffset - 1;
+    }
+
+    
+    /**
+     * Creates an empty segment.
+     *
+     * @param dir        the log directory
+     * @param baseOffset the offset of its first record
+     * @param size       the size of the data file
+     * @return the segment
+     * @throws IOException if the files cannot be created
+     */
+    static LogSegment create(File dir, long baseOffset, int size) throws IOException {
+        
+        return new LogSegment(dir, baseOffset, size);
+    }
+
+    
+    /**
+     * Opens an existing segment and recovers its end: the index is loaded, then the
+     * records after its last entry are checked until the first missing or torn one.
+     *
+     * @param dir        the log directory
+     * @param baseOffset the offset of its first record
+     * @param size       the size of new data files
+     * @return the segment
+     * @throws IOException if the files cannot be read
+     */
+    static LogSegment open(File dir, long baseOffset, int size) throws IOException {
+        
+        LogSegment segment = new LogSegment(dir, baseOffset, size);
+        segment.loadIndex();
+        segment.recover();
+        return segment;
+    }
+
+    
+    /**
+     * Returns the file name of a segment.
+     *
+     * @param baseOffset the offset of its first record
+     * @param suffix     the file suffix
+     * @return the file name
+     */
+    static String fileName(long baseOffset, String suffix) {
+        
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    
+    private void loadIndex() throws IOException {
+        
+        int entries = (int) (indexChannel.size() / INDEX_ENTRY_SIZE);
+        ByteBuffer bytes = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+        while (bytes.hasRemaining() && indexChannel.read(bytes, bytes.position()) > 0) {
+            // read the whole index
+        }
+        bytes.flip();
+        
+        for (int i = 0; i < entries; ++i) {
+            long offset = bytes.getLong();
+            long timestamp = bytes.getLong();
+            int pos = bytes.getInt();
+            if (pos >= buffer.capacity() || (indexSize > 0 && pos <= indexPositions[indexSize - 1])) break;
+            addIndexEntry(offset, timestamp, pos);
+        }
+        indexPersisted = indexSize;
+        indexChannel.truncate((long) indexSize * INDEX_ENTRY_SIZE);
+    }
+
+    
+    private void recover() throws IOException {
+        
+        int pos = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+        int lastIndexed = pos;
+        if (indexSize > 0) lastOffset = indexOffsets[indexSize - 1] - 1;
+        
+        while (true) {
+            int size = recordSize(pos);
+            if (size < 0 || !isIntact(pos, size)) break;
+            
+            long offset = buffer.getLong(pos + 8);
+            long timestamp = buffer.getLong(pos + 16);
+            if (indexSize == 0 || pos - lastIndexed >= MessageLog.INDEX_INTERVAL_BYTES) {
+                if (indexSize == 0 || pos > indexPositions[indexSize - 1]) addIndexEntry(offset, timestamp, pos);
+                lastIndexed = pos;
+            }
+            lastOffset = offset;
+            pos += 4 + size;
+        }
+
+        // wipe what follows the last good record, so a torn write is never read back
+        for (int i = pos; i < Math.min(buffer.capacity(), pos + HEADER_SIZE); ++i) buffer.put(i, (byte) 0);
+        position = pos;
+        commit();
+    }
+
+    
+    /**
+     * Returns the size of the record at a position, without its size field.
+     *
+     * @param pos the position of the record
+     * @return the size, or -1 if no record starts there
+     */
+    private int recordSize(int pos) {
+        
+        if (pos + HEADER_SIZE > buffer.capacity()) return -1;
+        int size = buffer.getInt(pos);
+        if (size < HEADER_SIZE - 4 || pos + 4 + size > buffer.capacity()) return -1;
+        return size;
+    }
+
+    
+    private boolean isIntact(int pos, int size) {
+        
+        ByteBuffer body = buffer.duplicate();
+        body.position(pos + 8);
+        body.limit(pos + 4 + size);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(pos + 4);
+    }
+
+    
+    /**
+     * Tells whether a record holding the given frame still fits in this segment.
+     *
+     * @param frameSize the size of the message frame
+     * @return true if the record fits
+     */
+    boolean fits(int frameSize) {
+        
+        return position + HEADER_SIZE + frameSize <= buffer.capacity();
+    }
+
+    
+    /**
+     * Returns the offset of the last record.
+     *
+     * @return the last offset, baseOffset - 1 when empty
+     */
+    long getLastOffset() {
+        
+        return lastOffset;
+    }
+
+    
+    /**
+     * Writes a record. It becomes visible to readers at the next commit.
+     *
+     * @param offset    the offset of the message
+     * @param timestamp the timestamp of the message
+     * @param frame     the encoded message frame
+     */
+    void append(long offset, long timestamp, ByteBuffer frame) {
+        
+        ByteBuffer view = frame.duplicate();
+        int frameSize = view.remaining();
+        
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + 8);
+        target.putLong(offset);
+        target.putLong(timestamp);
+        target.put(view);
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + 8);
+        body.limit(position + HEADER_SIZE + frameSize);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, HEADER_SIZE - 4 + frameSize);
+
+        int lastIndexed = indexSize > 0 ? indexPositions[indexSize - 1] : -MessageLog.INDEX_INTERVAL_BYTES;
+        if (position - lastIndexed >= MessageLog.INDEX_INTERVAL_BYTES) addIndexEntry(offset, timestamp, position);
+        
+        position += HEADER_SIZE + frameSize;
+        lastOffset = offset;
+    }
+
+    
+    /**
+     * Forces the records written so far to disk, then the new index entries,
+     * and makes the records visible to readers.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    void commit() throws IOException {
+        
+        if (committed == position) return;
+        buffer.force();
+
+        int pending;
+        synchronized (this) {
+            pending = indexSize - indexPersisted;
+        }
+        
+        if (pending > 0) {
+            ByteBuffer entries = ByteBuffer.allocate(pending * INDEX_ENTRY_SIZE);
+            synchronized (this) {
+                for (int i = indexPersisted; i < indexPersisted + pending; ++i) {
+                    entries.putLong(indexOffsets[i]).putLong(indexTimestamps[i]).putInt(indexPositions[i]);
+                }
+            }
+            entries.flip();
+            long at = (long) indexPersisted * INDEX_ENTRY_SIZE;
+            while (entries.hasRemaining()) at += indexChannel.write(entries, at);
+            indexChannel.force(false);
+            indexPersisted += pending;
+        }
+        committed = position;
+    }
+
+    
+    private synchronized void addIndexEntry(long offset, long timestamp, int pos) {
+        
+        if (indexSize == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexOffsets[indexSize] = offset;
+        indexTimestamps[indexSize] = timestamp;
+        indexPositions[indexSize] = pos;
+        indexSize++;
+    }
+
+    
+    /**
+     * Finds where to start scanning for an offset, with a binary search of the index.
+     *
+     * @param offset the offset looked for
+     * @return the position of the last indexed record at or before the offset
+     */
+    private synchronized int floorPosition(long offset) {
+        
+        int low = 0, high = indexSize - 1, found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexOffsets[mid] <= offset) {
+                found = indexPositions[mid];
+                low = mid + 1;
+            } 
+            
+            else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    
+    /**
+     * Finds the first offset stamped at or after a time, using the time index to skip ahead.
+     *
+     * @param timestamp the epoch millis looked for
+     * @return the offset, or -1 if every record of the segment is older
+     */
+    long offsetAt(long timestamp) {
+        
+        int pos;
+        synchronized (this) {
+            int low = 0, high = indexSize - 1, found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] < timestamp) {
+                    found = indexPositions[mid];
+                    low = mid + 1;
+                } 
+                
+                else {
+                    high = mid - 1;
+                }
+            }
+            pos = found;
+        }
+
+        int end = committed;
+        while (pos < end) {
+            int size = buffer.getInt(pos);
+            if (buffer.getLong(pos + 16) >= timestamp) return buffer.getLong(pos + 8);
+            pos += 4 + size;
+        }
+        return -1;
+    }
+
+    
+    /**
+     * Reads the committed records from an offset on.
+     *
+     * @param fromOffset the first offset wanted
+     * @param max        the most messages to add
+     * @param into       the list receiving the messages
+     * @throws IOException if a record cannot be decoded
+     */
+    void read(long fromOffset, int max, List<Message> into) throws IOException {
+        
+        int pos = floorPosition(fromOffset);
+        int end = committed;
+        
+        while (pos < end && into.size() < max) {
+            int size = buffer.getInt(pos);
+            long offset = buffer.getLong(pos + 8);
+            
+            if (offset >= fromOffset) {
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(pos + HEADER_SIZE);
+                frame.limit(pos + 4 + size);
+                Frames.getVarint(frame);
+                
+                ByteBuffer payload = ByteBuffer.allocate(frame.remaining());
+                payload.put(frame);
+                payload.flip();
+                into.add(MessageDecoder.decode(payload));
+            }
+            pos += 4 + size;
+        }
+    }
+
+    
+    /**
+     * Closes the files of the segment.
+     */
+    void close() {
+        
+        try {
+            channel.close();
+            indexChannel.close();
+        } 
+        
+        catch (IOException e) {
+        } // not much else I can do
+    }
+}
@@ -0,0 +1,176 @@
+package com.chat.server.log;
+
+import com.chat.common.data.Message;
+import com.chat.common.utils.Type;
+import com.chat.server.ClientConnection;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Replays the earlier messages of a room to a client that asks for them.
+ * Recent messages come from the in-memory ring as the frames that were broadcast,
+ * older ones from the message log. Replays run on their own thread, a batch at a
+ * time, so a long catch-up neither holds the client's reader nor delays live messages.
+ * The replay ends with a HISTORY message carrying the offset to resume from.
+ */
+public class MessageHistory {
+    
+    // the messages replayed before the replay yields to the others
+    private static final int BATCH_SIZE = 128;
+    
+    // the latest messages, may be null
+    private final RecentMessages recent;
+    
+    // the older messages, may be null
+    private final MessageLog log;
+    
+    // the offset the next message will get
+    private final AtomicLong nextOffset;
+    
+    // the most offsets a single request goes back
+    private final int limit;
+    
+    // the thread running the replays
+    private final ExecutorService executor;
+
+    
+    /**
+     * Constructs the history service.
+     *
+     * @param recent     the ring of the latest messages
+     * @param log        the message log, null when messages are not kept on disk
+     * @param nextOffset the offset counter of the server
+     * @param limit      the most offsets a single request goes back
+     * @param threads    the factory of the replay thread
+     */
+    public MessageHistory(RecentMessages recent, MessageLog log, AtomicLong nextOffset, int limit, ThreadFactory threads) {
+        
+        this.recent = recent;
+        this.log = log;
+        this.nextOffset = nextOffset;
+        this.limit = Math.max(1, limit);
+        this.executor = Executors.newSingleThreadExecutor(threads);
+    }
+
+    
+    /**
+     * Replays the messages of a room to a client, from an offset when the request
+     * has one, otherwise from its timestamp. The call returns at once.
+     *
+     * @param client  the client asking
+     * @param request the HISTORY request
+     */
+    public void replay(final ClientConnection client, Message request) {
+        
+        final String room = request.getRoom();
+        final long end = nextOffset.get();
+        long from = request.getOffset() > 0 ? request.getOffset() : offsetAt(request.getTimestamp(), end);
+        
+        // only the latest messages of a long absence are replayed
+        final long start = Math.max(from, end - limit);
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                
+                replayBatch(client, room, start, start, end, 0);
+            }
+        }, client);
+    }
+
+    
+    private long offsetAt(long timestamp, long end) {
+        
+        long offset = log != null ? log.offsetAt(timestamp) : -1;
+        if (offset < 0) offset = recent.offsetAt(timestamp);
+        return offset < 0 ? end : offset;
+    }
+
+    
+    /**
+     * Sends one batch, then queues the next one behind the replays of the other clients.
+     */
+    private void replayBatch(final ClientConnection client, final String room,
+                             final long start, long next, final long end, int replayed) {
+        
+        int sent = 0;
+        
+        try {
+            while (next < end && sent < BATCH_SIZE) {
+                
+                if (next < recent.getOldestOffset() && log != null) {
+                    List<Message> older = log.read(next, BATCH_SIZE);
+                    if (older.isEmpty()) {
+                        next = recent.getOldestOffset();
+                        continue;
+                    }
+                    for (Message message : older) {
+                        if (message.getOffset() >= end) break;
+                        next = message.getOffset() + 1;
+                        if (!room.equals(message.getRoom())) continue;
+                        if (!client.writeMsg(message)) return; // gone, stop replaying
+                        sent++;
+                    }
+                    continue;
+                }
+                
+                next = Math.max(next, recent.getOldestOffset());
+                if (next >= end) break;
+                RecentMessages.Entry entry = recent.get(next++);
+                if (entry == null || !room.equals(entry.room)) continue;
+                if (!client.writeFrame(entry.frame)) return; // gone, stop replaying
+                sent++;
+            }
+        } 
+        
+        catch (IOException e) {
+            client.writeMsg(new Message(e, "Exception reading the history"));
+            next = end;
+        }
+
+        final long resume = next;
+        final int total = replayed + sent;
+        if (resume < end) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    
+                    replayBatch(client, room, start, resume, end, total);
+                }
+            }, client);
+            return;
+        }
+
+        Message done = new Message("Replayed " + total + " messages of " + room + " from offset " + start + ".", Type.HISTORY);
+        done.setRoom(room);
+        done.setOffset(end);
+        client.writeMsg(done);
+    }
+
+    
+    private void submit(Runnable task, ClientConnection client) {
+        
+        try {
+            executor.execute(task);
+        } 
+        
+        catch (RejectedExecutionException e) {
+            client.writeMsg(new Message("The server is shutting down", Type.ERROR));
+        }
+    }
+
+    
+    /**
+     * Stops replaying.
+     */
+    public void close() {
+        
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,295 @@
+package com.chat.server.log;
+
+import com.chat.common.data.Message;
+import com.chat.common.io.Frames;
+import com.chat.common.log.AsyncLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Append-only log of the chat messages, stored in memory-mapped segment files.
+ * The server hands each message over after its fan-out, as the frame it already encoded,
+ * so the broadcast never waits for the disk. A single appender thread writes them in
+ * offset order and commits once per batch: one force covers every message that arrived
+ * while the previous one was running.
+ */
+public class MessageLog implements Closeable {
+    
+    // how many bytes of records separate two entries of the sparse index
+    public static final int INDEX_INTERVAL_BYTES = 4096;
+    
+    // how many messages may wait for the appender before the server has to wait
+    private static final int QUEUE_SIZE = 65536;
+    
+    // how far out of order messages may arrive before a missing offset is given up on
+    private static final int MAX_REORDER = 4096;
+    
+    // the directory of the segment files
+    private final File dir;
+    
+    // the size of each segment file
+    private final int segmentBytes;
+    
+    // the segments, oldest first
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<LogSegment>();
+    
+    // the messages waiting for the appender
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    
+    // the offset to hand out to the first new message
+    private final long nextOffset;
+    
+    // the thread writing the messages
+    private final Thread appender;
+    
+    // the boolean that will be turned off to stop the appender
+    private volatile boolean running = true;
+
+    
+    private MessageLog(File dir, int segmentBytes) throws IOException {
+        
+        this.dir = dir;
+        this.segmentBytes = Math.max(segmentBytes, Frames.MAX_FRAME_SIZE + Frames.MAX_VARINT_SIZE + LogSegment.HEADER_SIZE);
+        
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create the log directory " + dir);
+
+        File[] files = dir.listFiles();
+        List<Long> bases = new ArrayList<Long>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".log")) bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Long[] sorted = bases.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        for (Long base : sorted) segments.add(LogSegment.open(dir, base, this.segmentBytes));
+
+        if (segments.isEmpty()) segments.add(LogSegment.create(dir, 1, this.segmentBytes));
+        LogSegment last = segments.get(segments.size() - 1);
+        this.nextOffset = last.getLastOffset() + 1;
+
+        appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                appendLoop();
+            }
+        }, "message-log");
+        appender.setDaemon(true);
+    }
+
+    
+    /**
+     * Opens the log in a directory, recovering the segments already there, and starts its appender.
+     *
+     * @param dir          the log directory, created if missing
+     * @param segmentBytes the size of each segment file
+     * @return the log
+     * @throws IOException if the log cannot be opened
+     */
+    public static MessageLog open(File dir, int segmentBytes) throws IOException {
+        
+        MessageLog log = new MessageLog(dir, segmentBytes);
+        log.appender.start();
+        return log;
+    }
+
+    
+    /**
+     * Returns the offset to give the first message appended after opening.
+     * Every offset handed out from there on must be appended, as the log writes them in order.
+     *
+     * @return the next offset
+     */
+    public long getNextOffset() {
+        
+        return nextOffset;
+    }
+
+    
+    /**
+     * Hands a message over to the appender. Messages may come in slightly out of order
+     * from concurrent senders; they are written in offset order.
+     * The call only waits when the disk cannot keep up for a whole queue of messages.
+     *
+     * @param offset    the offset of the message
+     * @param timestamp the timestamp of the message
+     * @param frame     the encoded message, shared read-only
+     */
+    public void append(long offset, long timestamp, ByteBuffer frame) {
+        
+        if (!running) return;
+        try {
+            queue.put(new Entry(offset, timestamp, frame));
+        } 
+        
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    
+    private void appendLoop() {
+        
+        PriorityQueue<Entry> reorder = new PriorityQueue<Entry>();
+        List<Entry> batch = new ArrayList<Entry>();
+        long expected = nextOffset;
+        
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                reorder.add(first);
+                queue.drainTo(batch);
+                reorder.addAll(batch);
+                batch.clear();
+
+                // an offset that never came would stall the log, skip it past the reorder window
+                if (reorder.size() > MAX_REORDER && reorder.peek().offset > expected) {
+                    AsyncLog.warn("MessageLog", "Offsets " + expected + " to " + (reorder.peek().offset - 1) + " never arrived, skipping them", null);
+                    expected = reorder.peek().offset;
+                }
+
+                boolean wrote = false;
+                while (!reorder.isEmpty() && reorder.peek().offset <= expected) {
+                    Entry entry = reorder.poll();
+                    if (entry.offset < expected) continue;
+                    write(entry);
+                    expected++;
+                    wrote = true;
+                }
+                if (wrote) active().commit();
+            } 
+            
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } 
+            
+            catch (IOException e) {
+                AsyncLog.error("MessageLog", "Exception writing the message log", e);
+            }
+        }
+    }
+
+    
+    private void write(Entry entry) throws IOException {
+        
+        LogSegment segment = active();
+        int frameSize = entry.frame.remaining();
+        
+        if (!segment.fits(frameSize)) {
+            segment.commit();
+            segment = LogSegment.create(dir, entry.offset, segmentBytes);
+            segments.add(segment);
+        }
+        segment.append(entry.offset, entry.timestamp, entry.frame);
+    }
+
+    
+    private LogSegment active() {
+        
+        return segments.get(segments.size() - 1);
+    }
+
+    
+    /**
+     * Reads the committed messages from an offset on.
+     *
+     * @param fromOffset the first offset wanted
+     * @param max        the most messages to return
+     * @return the messages, in offset order
+     * @throws IOException if a record cannot be read
+     */
+    public List<Message> read(long fromOffset, int max) throws IOException {
+        
+        List<Message> messages = new ArrayList<Message>();
+        List<LogSegment> all = segments;
+        
+        int first = 0;
+        for (int i = all.size() - 1; i >= 0; --i) {
+            if (all.get(i).baseOffset <= fromOffset) {
+                first = i;
+                break;
+            }
+        }
+        for (int i = first; i < all.size() && messages.size() < max; ++i) {
+            all.get(i).read(fromOffset, max, messages);
+        }
+        return messages;
+    }
+
+    
+    /**
+     * Finds the first committed message stamped at or after a time.
+     *
+     * @param timestamp the epoch millis looked for
+     * @return its offset, or -1 if every message is older
+     */
+    public long offsetAt(long timestamp) {
+        
+        for (LogSegment segment : segments) {
+            long offset = segment.offsetAt(timestamp);
+            if (offset >= 0) return offset;
+        }
+        return -1;
+    }
+
+    
+    /**
+     * Stops the appender once the waiting messages are written, and closes the files.
+     */
+    @Override
+    public void close() {
+        
+        running = false;
+        try {
+            appender.join(5000);
+        } 
+        
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LogSegment segment : segments) segment.close();
+    }
+
+    
+    /**
+     * A message waiting for the appender.
+     */
+    private static class Entry implements Comparable<Entry> {
+        
+        final long offset;
+        final long timestamp;
+        final ByteBuffer frame;
+
+        
+        Entry(long offset, long timestamp, ByteBuffer frame) {
+            
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.frame = frame.duplicate();
+        }
+
+        
+        @Override
+        public int compareTo(Entry other) {
+            
+            return Long.compare(offset, other.offset);
+        }
+    }
+}
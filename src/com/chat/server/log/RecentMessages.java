@@ -0,0 +1,124 @@
+package com.chat.server.log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Ring of the latest room messages, kept as the frames that were broadcast, so recent
+ * history is replayed without touching the disk or encoding anything again.
+ * Each offset has its own slot, so publishers never contend; a reader checks the
+ * offset of the slot to tell an overwritten or not yet stored message apart.
+ */
+public class RecentMessages {
+    
+    // the slots, indexed by offset
+    private final AtomicReferenceArray<Entry> slots;
+    
+    // the slot index mask, the capacity being a power of two
+    private final int mask;
+    
+    // the first offset stored since the server started
+    private final long firstOffset;
+    
+    // the highest offset stored
+    private final AtomicLong newest = new AtomicLong();
+
+    
+    /**
+     * Constructs an empty ring.
+     *
+     * @param capacity    the number of messages kept, rounded up to a power of two
+     * @param firstOffset the offset of the first message that will be stored
+     */
+    public RecentMessages(int capacity, long firstOffset) {
+        
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.firstOffset = firstOffset;
+        this.newest.set(firstOffset - 1);
+    }
+
+    
+    /**
+     * Stores a message that was just broadcast.
+     *
+     * @param offset    the offset of the message
+     * @param timestamp the timestamp of the message
+     * @param room      the room of the message
+     * @param frame     the encoded message, shared read-only
+     */
+    public void add(long offset, long timestamp, String room, ByteBuffer frame) {
+        
+        slots.set((int) (offset & mask), new Entry(offset, timestamp, room, frame));
+        
+        long current;
+        while ((current = newest.get()) < offset && !newest.compareAndSet(current, offset)) {
+            // another publisher moved it, try again
+        }
+    }
+
+    
+    /**
+     * Returns the oldest offset the ring still holds.
+     *
+     * @return the oldest offset, messages before it have to be read from the log
+     */
+    public long getOldestOffset() {
+        
+        return Math.max(firstOffset, newest.get() - mask);
+    }
+
+    
+    /**
+     * Returns the message stored under an offset.
+     *
+     * @param offset the offset
+     * @return the message, or null if it was overwritten or is not stored yet
+     */
+    public Entry get(long offset) {
+        
+        Entry entry = slots.get((int) (offset & mask));
+        return entry != null && entry.offset == offset ? entry : null;
+    }
+
+    
+    /**
+     * Finds the first stored message stamped at or after a time.
+     *
+     * @param timestamp the epoch millis looked for
+     * @return its offset, or -1 if the ring holds no such message
+     */
+    public long offsetAt(long timestamp) {
+        
+        long last = newest.get();
+        for (long offset = getOldestOffset(); offset <= last; ++offset) {
+            Entry entry = get(offset);
+            if (entry != null && entry.timestamp >= timestamp) return offset;
+        }
+        return -1;
+    }
+
+    
+    /**
+     * A message kept in the ring.
+     */
+    public static class Entry {
+        
+        public final long offset;
+        public final long timestamp;
+        public final String room;
+        public final ByteBuffer frame;
+
+        
+        Entry(long offset, long timestamp, String room, ByteBuffer frame) {
+            
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.frame = frame;
+        }
+    }
+}
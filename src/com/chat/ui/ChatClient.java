@@ -2,8 +2,10 @@ package com.chat.ui;
 
 import com.chat.Main;
 import com.chat.client.ClientSvc;
+import com.chat.client.MessageListener;
 import com.chat.client.impl.Client;
 import com.chat.common.data.Message;
+import com.chat.common.log.AsyncLog;
 
 import javax.swing.*;
 import java.awt.*;
@@ -11,12 +13,14 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.function.Consumer;
 
 
 /**
  * Represents the Chat Client UI.
  */
-public class ChatClient extends JFrame {
+public class ChatClient extends JFrame implements MessageListener {
     
     private static final long serialVersionUID = 1L;
     private JLabel lbUsername = new JLabel("Username: ", SwingConstants.CENTER);
@@ -24,7 +28,9 @@ public class ChatClient extends JFrame {
     private JButton btJoin = new JButton("Join");
     private JButton btLeave = new JButton("Leave");
     private JButton ptActiveUsers = new JButton("Active Users");
-    private JTextArea taChatRoom = new JTextArea("Welcome to the Chat room\n", 80, 60);
+    private ChatHistoryModel chatHistory = new ChatHistoryModel();
+    private JList<Message> lsChatRoom = new JList<Message>(chatHistory);
+    private UiDispatcher dispatcher;
     private JTextField tfHost = new JTextField();
     private JLabel lHost = new JLabel("Chat Server: ", SwingConstants.CENTER);
     private JTextField tfPort = new JTextField();
@@ -63,10 +69,20 @@ public class ChatClient extends JFrame {
         add(pnlNorth, BorderLayout.NORTH);
 
         JPanel centerPanel = new JPanel(new GridLayout(1, 1));
-        centerPanel.add(new JScrollPane(taChatRoom));
-        taChatRoom.setEditable(false);
-        taChatRoom.setLineWrap(true);
+        centerPanel.add(new JScrollPane(lsChatRoom));
+        // a fixed row height lets the list lay out only the visible rows
+        lsChatRoom.setFixedCellHeight(lsChatRoom.getFontMetrics(lsChatRoom.getFont()).getHeight() + 2);
+        lsChatRoom.setCellRenderer(new MessageRenderer());
+        lsChatRoom.setFocusable(false);
+        chatHistory.add(new Message("Welcome to the Chat room"));
         add(centerPanel, BorderLayout.CENTER);
+        dispatcher = new UiDispatcher(chatHistory.getCapacity(), new Consumer<List<Message>>() {
+            @Override
+            public void accept(List<Message> batch) {
+                showMessages(batch);
+            }
+        });
+        dispatcher.start();
 
         btJoin.addActionListener(new JoinActionListener());
         btLeave.addActionListener(new LeaveActionListener());
@@ -91,24 +107,58 @@ public class ChatClient extends JFrame {
 
     
     /**
-     * Appends a message to the chat room.
+     * Appends a message to the chat room at the next frame, from any thread.
      *
      * @param msg the message to append
      */
     public void appendText(Message msg) {
         
-        String message = msg.toString();
-        taChatRoom.append(message);
-        taChatRoom.setCaretPosition(taChatRoom.getText().length() - 1);
-        ChatClient.this.setTitle(msg.getUsername() + ": " + msg.getMsg());
+        dispatcher.post(msg);
     }
 
     
     /**
-     * Notifies that the connection to the chat server has failed.
+     * Appends a batch of messages to the chat room, on the event dispatch thread.
+     *
+     * @param batch the messages to append, oldest first
      */
+    private void showMessages(List<Message> batch) {
+        
+        chatHistory.addAll(batch);
+        lsChatRoom.ensureIndexIsVisible(chatHistory.getSize() - 1);
+        Message last = batch.get(batch.size() - 1);
+        ChatClient.this.setTitle(last.getUsername() + ": " + last.getMsg());
+    }
+
+    
+    /**
+     * Shows a message received from the chat server.
+     *
+     * @param msg the message received
+     */
+    @Override
+    public void onMessage(Message msg) {
+        
+        appendText(msg);
+    }
+
+    
+    /**
+     * Notifies that the connection to the chat server has failed, from any thread.
+     */
+    @Override
     public void connectionFailed() {
         
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    connectionFailed();
+                }
+            });
+            return;
+        }
+        
         btJoin.setEnabled(true);
         btLeave.setEnabled(false);
         ptActiveUsers.setEnabled(false);
@@ -127,7 +177,7 @@ public class ChatClient extends JFrame {
         } 
         
         catch (UnknownHostException e) {
-            e.printStackTrace();
+            AsyncLog.error("ChatClient", "Cannot resolve the address of this machine", e);
         }
     }
 
@@ -137,7 +187,7 @@ public class ChatClient extends JFrame {
         @Override
         public void actionPerformed(ActionEvent e) {
             
-            String username = tfUsername.getText().trim();
+            final String username = tfUsername.getText().trim();
             if(username.length() == 0)
                 return;
             
@@ -153,20 +203,108 @@ public class ChatClient extends JFrame {
                 return;
             }
 
-            clientSvc = new Client(host, port, username, ChatClient.this);
-            host = clientSvc.start();
-            tfHost.setText(host);
-            tfUsername.setText("");
-            lbUsername.setText("Enter your message below");
-            isConnected = true;
-
+            final ClientSvc client = new Client(host, port, username, ChatClient.this);
+            clientSvc = client;
             btJoin.setEnabled(false);
-            btLeave.setEnabled(true);
             tfHost.setEnabled(false);
             tfPort.setEnabled(false);
+            ChatClient.this.setTitle("Connecting to " + host + ":" + port);
+
+            // the connection may be retried for a while, away from the event dispatch thread
+            Thread connect = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    
+                    final String reached = client.start();
+                    final boolean connected = client.isConnected();
+                    
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            
+                            host = reached;
+                            tfHost.setText(reached);
+                            if (connected) joined(username);
+                            else ChatClient.this.setTitle("Chat Client");
+                        }
+                    });
+                }
+            }, "client-connect");
+            connect.setDaemon(true);
+            connect.start();
+        }
+    }
+
+    
+    /**
+     * Switches the UI to the connected state, on the event dispatch thread.
+     *
+     * @param username the user that joined
+     */
+    private void joined(String username) {
+        
+        tfUsername.setText("");
+        lbUsername.setText("Enter your message below");
+        isConnected = true;
 
-            ptActiveUsers.setEnabled(true);
-            ChatClient.this.setTitle(username + " Joined");
+        btJoin.setEnabled(false);
+        btLeave.setEnabled(true);
+        tfHost.setEnabled(false);
+        tfPort.setEnabled(false);
+
+        ptActiveUsers.setEnabled(true);
+        ChatClient.this.setTitle(username + " Joined");
+    }
+
+    
+    /**
+     * Turns the text typed by the user into a message, "/join room" and "/leave room"
+     * being room commands, "/msg user text" a direct message and anything else a chat message.
+     *
+     * @param text the text typed
+     * @return the message to send
+     */
+    private Message toMessage(String text) {
+        
+        String[] command = text.trim().split("\\s+", 2);
+        
+        if (command.length == 2 && command[0].equals("/join")) {
+            Message join = new Message("", com.chat.common.utils.Type.JOIN);
+            join.setRoom(command[1]);
+            return join;
+        }
+        
+        if (command.length == 2 && command[0].equals("/leave")) {
+            Message leave = new Message("", com.chat.common.utils.Type.LEAVE);
+            leave.setRoom(command[1]);
+            return leave;
+        }
+        if (command[0].equals("/stats")) {
+            return new Message("", com.chat.common.utils.Type.STATS);
+        }
+        if (command.length == 2 && command[0].equals("/msg")) {
+            String[] direct = command[1].split("\\s+", 2);
+            Message msg = new Message(direct.length == 2 ? direct[1] : "", com.chat.common.utils.Type.DIRECT);
+            msg.setRecipient(direct[0]);
+            return msg;
+        }
+        return new Message(text, com.chat.common.utils.Type.MSG);
+    }
+
+    
+    /**
+     * Renders one message of the history on a single line.
+     */
+    private static class MessageRenderer extends DefaultListCellRenderer {
+        
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                      boolean cellHasFocus) {
+            
+            String text = value.toString().trim();
+            return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
         }
     }
 
@@ -199,7 +337,7 @@ public class ChatClient extends JFrame {
         public void actionPerformed(ActionEvent e) {
             
             if(isConnected) {
-                clientSvc.sendMessage(new Message(tfUsername.getText(), com.chat.common.utils.Type.MSG));
+                clientSvc.sendMessage(toMessage(tfUsername.getText()));
                 tfUsername.setText("");
                 ChatClient.this.setTitle(tfUsername.getText());
             } 
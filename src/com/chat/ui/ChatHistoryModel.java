@@ -0,0 +1,123 @@
+package com.chat.ui;
+
+import com.chat.common.data.Message;
+
+import javax.swing.AbstractListModel;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The chat history shown by the ChatClient, kept in a fixed-size ring buffer.
+ * Once the buffer is full the oldest lines are evicted, so a long running client
+ * holds a bounded number of messages whatever the traffic.
+ * Like every Swing model it must only be changed on the event dispatch thread.
+ */
+public class ChatHistoryModel extends AbstractListModel<Message> {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public static final String CAPACITY_PROPERTY = "chat.ui.historyLines";
+    
+    // the messages, the oldest at head
+    private final Message[] ring;
+    
+    // the index of the oldest message
+    private int head;
+    
+    // the number of messages held
+    private int size;
+
+    
+    /**
+     * Constructs a history holding at most the given number of messages.
+     *
+     * @param capacity the number of messages kept
+     */
+    public ChatHistoryModel(int capacity) {
+        
+        ring = new Message[Math.max(1, capacity)];
+    }
+
+    
+    /**
+     * Constructs a history sized by the chat.ui.historyLines system property, 10000 by default.
+     */
+    public ChatHistoryModel() {
+        
+        this(Integer.getInteger(CAPACITY_PROPERTY, 10000));
+    }
+
+    
+    /**
+     * Appends a message, evicting the oldest one if the history is full.
+     *
+     * @param msg the message to append
+     */
+    public void add(Message msg) {
+        
+        addAll(Collections.singletonList(msg));
+    }
+
+    
+    /**
+     * Appends a batch of messages with one removal and one addition event,
+     * so the list is laid out and repainted once per batch.
+     *
+     * @param batch the messages to append, oldest first
+     */
+    public void addAll(List<Message> batch) {
+        
+        int added = Math.min(batch.size(), ring.length);
+        if (added == 0) return;
+        
+        int evicted = Math.max(0, size + added - ring.length);
+        if (evicted > 0) {
+            for (int i = 0; i < evicted; ++i) ring[(head + i) % ring.length] = null;
+            head = (head + evicted) % ring.length;
+            size -= evicted;
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+
+        int first = batch.size() - added;
+        for (int i = 0; i < added; ++i) ring[(head + size + i) % ring.length] = batch.get(first + i);
+        size += added;
+        fireIntervalAdded(this, size - added, size - 1);
+    }
+
+    
+    /**
+     * Returns the number of messages the history keeps.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        
+        return ring.length;
+    }
+
+    
+    /**
+     * Returns the number of messages in the history.
+     *
+     * @return the number of messages
+     */
+    @Override
+    public int getSize() {
+        
+        return size;
+    }
+
+    
+    /**
+     * Returns a message of the history.
+     *
+     * @param index the index of the message, 0 being the oldest
+     * @return the message
+     */
+    @Override
+    public Message getElementAt(int index) {
+        
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return ring[(head + index) % ring.length];
+    }
+}
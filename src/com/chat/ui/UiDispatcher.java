@@ -0,0 +1,106 @@
+package com.chat.ui;
+
+import com.chat.common.data.Message;
+
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hands the messages read by the network thread to the event dispatch thread in batches.
+ * The network thread only queues, it never waits on the UI, and every frame the EDT
+ * takes whatever arrived since the last one, turning a burst into one model update and repaint.
+ */
+public class UiDispatcher {
+    
+    // the frame period, about 60 frames per second
+    public static final int FRAME_MILLIS = 16;
+    
+    // the messages waiting for the next frame
+    private final Queue<Message> inbound = new ConcurrentLinkedQueue<Message>();
+    
+    // the size of the inbound queue, kept apart as the queue does not count in O(1)
+    private final AtomicInteger pending = new AtomicInteger();
+    
+    // the most messages kept waiting, older ones would be evicted from the history anyway
+    private final int maxPending;
+    
+    // receives each batch on the EDT
+    private final Consumer<List<Message>> consumer;
+    
+    // fires every frame on the EDT
+    private final Timer timer;
+
+    
+    /**
+     * Constructs a dispatcher.
+     *
+     * @param maxPending the most messages kept waiting
+     * @param consumer   receives each batch on the event dispatch thread, oldest message first
+     */
+    public UiDispatcher(int maxPending, Consumer<List<Message>> consumer) {
+        
+        this.maxPending = Math.max(1, maxPending);
+        this.consumer = consumer;
+        this.timer = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                drain();
+            }
+        });
+        this.timer.setCoalesce(true);
+    }
+
+    
+    /**
+     * Starts delivering batches.
+     */
+    public void start() {
+        
+        timer.start();
+    }
+
+    
+    /**
+     * Stops delivering batches.
+     */
+    public void stop() {
+        
+        timer.stop();
+    }
+
+    
+    /**
+     * Queues a message for the next frame, from any thread, without ever blocking.
+     *
+     * @param msg the message to show
+     */
+    public void post(Message msg) {
+        
+        inbound.add(msg);
+        if (pending.incrementAndGet() > maxPending && inbound.poll() != null) pending.decrementAndGet();
+    }
+
+    
+    /**
+     * Takes everything queued since the last frame and hands it over as one batch.
+     */
+    private void drain() {
+        
+        int count = pending.get();
+        if (count == 0) return;
+        
+        List<Message> batch = new ArrayList<Message>(count);
+        Message msg;
+        while (batch.size() < count && (msg = inbound.poll()) != null) batch.add(msg);
+        pending.addAndGet(-batch.size());
+        
+        if (!batch.isEmpty()) consumer.accept(batch);
+    }
+}